@@ -0,0 +1,148 @@
+package ru.pobopo.smartthing.gateway.cache;
+
+import lombok.RequiredArgsConstructor;
+import ru.pobopo.smartthing.gateway.model.cache.CacheStats;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+/**
+ * LRU cache with per entry ttl, bounded by entries count and total values size.
+ * Expired entries are removed on read and by {@link #evictExpired()}.
+ */
+public class BoundedTtlCache<K, V> {
+    private final int maxEntries;
+    private final long maxSize;
+    private final ToLongFunction<V> sizeFunction;
+
+    // access ordered, eldest entry is least recently used
+    private final LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long expirations;
+    private long rejections;
+
+    public BoundedTtlCache(int maxEntries, long maxSize, ToLongFunction<V> sizeFunction) {
+        if (maxEntries <= 0 || maxSize <= 0) {
+            throw new IllegalArgumentException("Cache limits should be positive");
+        }
+        this.maxEntries = maxEntries;
+        this.maxSize = maxSize;
+        this.sizeFunction = sizeFunction;
+    }
+
+    public synchronized V get(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        if (entry.isExpired(System.nanoTime())) {
+            remove(key, entry);
+            expirations++;
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.value;
+    }
+
+    public synchronized void put(K key, V value, long ttlMillis) {
+        if (key == null || value == null || ttlMillis <= 0) {
+            return;
+        }
+        long valueSize = sizeFunction.applyAsLong(value);
+        if (valueSize > maxSize) {
+            rejections++;
+            return;
+        }
+
+        Entry<V> old = entries.put(key, new Entry<>(value, valueSize, System.nanoTime() + ttlMillis * 1_000_000));
+        if (old != null) {
+            size -= old.size;
+        }
+        size += valueSize;
+
+        Iterator<Map.Entry<K, Entry<V>>> iterator = entries.entrySet().iterator();
+        while ((entries.size() > maxEntries || size > maxSize) && iterator.hasNext()) {
+            Map.Entry<K, Entry<V>> eldest = iterator.next();
+            if (eldest.getKey().equals(key)) {
+                continue;
+            }
+            size -= eldest.getValue().size;
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    public synchronized int evictExpired() {
+        long now = System.nanoTime();
+        int removed = 0;
+        Iterator<Entry<V>> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry<V> entry = iterator.next();
+            if (entry.isExpired(now)) {
+                size -= entry.size;
+                iterator.remove();
+                removed++;
+            }
+        }
+        expirations += removed;
+        return removed;
+    }
+
+    public synchronized int invalidate(Predicate<K> predicate) {
+        int removed = 0;
+        Iterator<Map.Entry<K, Entry<V>>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<K, Entry<V>> entry = iterator.next();
+            if (predicate.test(entry.getKey())) {
+                size -= entry.getValue().size;
+                iterator.remove();
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    public synchronized CacheStats getStats() {
+        return CacheStats.builder()
+                .entries(entries.size())
+                .maxEntries(maxEntries)
+                .size(size)
+                .maxSize(maxSize)
+                .hits(hits)
+                .misses(misses)
+                .evictions(evictions)
+                .expirations(expirations)
+                .rejections(rejections)
+                .build();
+    }
+
+    private void remove(K key, Entry<V> entry) {
+        entries.remove(key);
+        size -= entry.size;
+    }
+
+    @RequiredArgsConstructor
+    private static class Entry<V> {
+        private final V value;
+        private final long size;
+        private final long expiresAt;
+
+        boolean isExpired(long now) {
+            return now - expiresAt >= 0;
+        }
+    }
+}
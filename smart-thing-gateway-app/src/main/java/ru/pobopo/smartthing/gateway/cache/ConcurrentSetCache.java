@@ -1,58 +1,206 @@
 package ru.pobopo.smartthing.gateway.cache;
 
 import lombok.NonNull;
-import lombok.RequiredArgsConstructor;
 
-import java.time.LocalDateTime;
-import java.time.temporal.ChronoUnit;
-import java.util.HashSet;
-import java.util.Set;
+import java.time.Duration;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
-import java.util.stream.Collectors;
 
-@RequiredArgsConstructor
+/**
+ * Set of values, which expire if not put again during ttl.
+ * Expiration uses hashed timer wheel: entry sits in the bucket of its deadline, put only updates
+ * entry timestamp in place, and entry is rescheduled lazily when its bucket is reached.
+ * So {@link #tick()} touches only entries with passed deadline.
+ * Found and lost callbacks are called from {@link #tick()} with all values found/lost since previous tick.
+ */
 public class ConcurrentSetCache<T> {
-    private final Set<CacheItem<T>> items = ConcurrentHashMap.newKeySet();
+    private final Map<T, Entry<T>> entries = new ConcurrentHashMap<>();
+    private final Set<T> view = new ValuesView();
 
-    private final long evictionTime;
-    private final ChronoUnit timeUnits;
-    // Called, when added item is not already in cache
-    private final Consumer<T> onPut;
-    // Called, when item evicted from cache
-    private final Consumer<T> onEvict;
+    private final long ttl;
+    private final long resolution;
+    private final long origin = System.nanoTime();
+    // Called with values, which were not in cache before
+    private final Consumer<List<T>> onPut;
+    // Called with expired values
+    private final Consumer<List<T>> onEvict;
+
+    // guarded by buckets
+    private final ArrayDeque<Entry<T>>[] buckets;
+    private final int mask;
+    private long cursor;
+    private List<T> found = new ArrayList<>();
+
+    @SuppressWarnings("unchecked")
+    public ConcurrentSetCache(Duration ttl, Duration resolution, Consumer<List<T>> onPut, Consumer<List<T>> onEvict) {
+        if (ttl.isNegative() || ttl.isZero() || resolution.isNegative() || resolution.isZero()) {
+            throw new IllegalArgumentException("Ttl and resolution should be positive");
+        }
+        this.ttl = ttl.toNanos();
+        this.resolution = resolution.toNanos();
+        this.onPut = onPut;
+        this.onEvict = onEvict;
+
+        // enough buckets to hold one ttl, entries further away are rescheduled on visit
+        int size = Integer.highestOneBit((int) Math.min(1 << 16, this.ttl / this.resolution + 1)) << 1;
+        this.buckets = new ArrayDeque[size];
+        for (int i = 0; i < size; i++) {
+            buckets[i] = new ArrayDeque<>();
+        }
+        this.mask = size - 1;
+    }
 
     public void put(T value) {
         if (value == null) {
             return;
         }
 
-        CacheItem<T> item = new CacheItem<>(value, LocalDateTime.now());
-        if (!items.remove(item)) {
-            onPut.accept(value);
+        long now = System.nanoTime();
+        while (true) {
+            Entry<T> entry = entries.get(value);
+            if (entry == null) {
+                Entry<T> created = new Entry<>(value, now);
+                if (entries.putIfAbsent(value, created) == null) {
+                    synchronized (buckets) {
+                        schedule(created);
+                        found.add(value);
+                    }
+                    return;
+                }
+                continue;
+            }
+
+            entry.value = value;
+            entry.touchedAt = now;
+            if (!entry.expiring) {
+                return;
+            }
+            // tick is deciding entry fate right now, it will see new timestamp or remove the entry
+            Thread.onSpinWait();
         }
-        items.add(item);
     }
 
+    /**
+     * Read-only live view of current values
+     */
     @NonNull
     public Set<T> getValues() {
-        Set<CacheItem<T>> it = new HashSet<>(items);
-        return it.stream().map(CacheItem::getItem).collect(Collectors.toUnmodifiableSet());
+        return view;
+    }
+
+    /**
+     * Cached value equal to the given one
+     */
+    public T get(T value) {
+        Entry<T> entry = value == null ? null : entries.get(value);
+        return entry == null ? null : entry.value;
+    }
+
+    public boolean contains(T value) {
+        return value != null && entries.containsKey(value);
     }
 
     public int size() {
-        return items.size();
+        return entries.size();
+    }
+
+    /**
+     * Expires values with passed deadline and calls found/lost callbacks.
+     * Should be called at least once per resolution.
+     */
+    public void tick() {
+        long now = System.nanoTime();
+        List<T> newValues;
+        List<T> lost = null;
+        synchronized (buckets) {
+            long target = (now - origin) / resolution;
+            // every bucket is visited once at most, even after long pause
+            cursor = Math.max(cursor, target - buckets.length);
+            while (cursor < target) {
+                cursor++;
+                ArrayDeque<Entry<T>> bucket = buckets[(int) (cursor & mask)];
+                for (int count = bucket.size(); count > 0; count--) {
+                    Entry<T> entry = bucket.poll();
+                    if (!expire(entry, now)) {
+                        schedule(entry);
+                    } else {
+                        if (lost == null) {
+                            lost = new ArrayList<>();
+                        }
+                        lost.add(entry.value);
+                    }
+                }
+            }
+            newValues = found;
+            if (!newValues.isEmpty()) {
+                found = new ArrayList<>();
+            }
+        }
+
+        if (!newValues.isEmpty()) {
+            onPut.accept(newValues);
+        }
+        if (lost != null) {
+            onEvict.accept(lost);
+        }
+    }
+
+    private boolean expire(Entry<T> entry, long now) {
+        if (now - entry.touchedAt < ttl) {
+            return false;
+        }
+        entry.expiring = true;
+        // concurrent put either sees expiring flag and waits, or its timestamp is visible here
+        if (now - entry.touchedAt < ttl) {
+            entry.expiring = false;
+            return false;
+        }
+        entries.remove(entry.value, entry);
+        return true;
     }
 
-    public void evictItems() {
-        items.removeIf(this::shouldEvict);
+    private void schedule(Entry<T> entry) {
+        long deadline = (entry.touchedAt + ttl - origin) / resolution + 1;
+        buckets[(int) (Math.max(deadline, cursor + 1) & mask)].add(entry);
     }
 
-    private boolean shouldEvict(CacheItem<T> item) {
-        boolean result = item.getAddedTime().until(LocalDateTime.now(), timeUnits) >= evictionTime;
-        if (result) {
-            onEvict.accept(item.getItem());
+    private static class Entry<T> {
+        private volatile T value;
+        private volatile long touchedAt;
+        private volatile boolean expiring;
+
+        private Entry(T value, long touchedAt) {
+            this.value = value;
+            this.touchedAt = touchedAt;
+        }
+    }
+
+    private class ValuesView extends AbstractSet<T> {
+        @Override
+        public Iterator<T> iterator() {
+            Iterator<Entry<T>> iterator = entries.values().iterator();
+            return new Iterator<>() {
+                @Override
+                public boolean hasNext() {
+                    return iterator.hasNext();
+                }
+
+                @Override
+                public T next() {
+                    return iterator.next().value;
+                }
+            };
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return o != null && entries.containsKey(o);
+        }
+
+        @Override
+        public int size() {
+            return entries.size();
         }
-        return result;
     }
 }
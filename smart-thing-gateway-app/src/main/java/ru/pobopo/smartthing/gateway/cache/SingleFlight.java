@@ -0,0 +1,53 @@
+package ru.pobopo.smartthing.gateway.cache;
+
+import ru.pobopo.smartthing.gateway.model.cache.SingleFlightStats;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Deduplicates concurrent calls with equal keys: the first caller executes the call,
+ * callers arriving while it is running get the same pending result (or exception).
+ */
+public class SingleFlight<K, V> {
+    private final Map<K, CompletableFuture<V>> calls = new ConcurrentHashMap<>();
+    private final LongAdder executed = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+
+    public CompletableFuture<V> execute(K key, Supplier<CompletableFuture<V>> call) {
+        CompletableFuture<V> future = new CompletableFuture<>();
+        CompletableFuture<V> running = calls.putIfAbsent(key, future);
+        if (running != null) {
+            coalesced.increment();
+            // copy, so one caller can't complete or cancel others result
+            return running.copy();
+        }
+
+        executed.increment();
+        CompletableFuture<V> result;
+        try {
+            result = call.get();
+        } catch (Throwable throwable) {
+            result = CompletableFuture.failedFuture(throwable);
+        }
+        result.whenComplete((value, throwable) -> {
+            calls.remove(key, future);
+            if (throwable != null) {
+                future.completeExceptionally(throwable instanceof CompletionException && throwable.getCause() != null
+                        ? throwable.getCause()
+                        : throwable);
+            } else {
+                future.complete(value);
+            }
+        });
+        return future.copy();
+    }
+
+    public SingleFlightStats getStats() {
+        return new SingleFlightStats(executed.sum(), coalesced.sum(), calls.size());
+    }
+}
@@ -1,12 +1,16 @@
 package ru.pobopo.smartthing.gateway.config;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.web.client.RestTemplate;
 import ru.pobopo.smartthing.gateway.service.cloud.CloudApiService;
+import ru.pobopo.smartthing.gateway.service.device.DeviceBatchService;
 import ru.pobopo.smartthing.gateway.service.device.DeviceRequestService;
 import ru.pobopo.smartthing.gateway.stomp.MessageProcessorFactory;
+import ru.pobopo.smartthing.gateway.stomp.processor.DeviceBatchRequestMessageProcessor;
 import ru.pobopo.smartthing.gateway.stomp.processor.DeviceRequestMessageProcessor;
 import ru.pobopo.smartthing.gateway.stomp.processor.GatewayCommandProcessor;
 import ru.pobopo.smartthing.gateway.stomp.processor.GatewayRequestProcessor;
@@ -23,13 +27,19 @@ public class MessageProcessorConfig {
     public MessageProcessorFactory messageProcessorFactory(
             CloudApiService cloudService,
             DeviceRequestService deviceRequestService,
-            RestTemplate restTemplate,
+            DeviceBatchService deviceBatchService,
+            ObjectMapper objectMapper,
+            @Qualifier(RestTemplateConfig.GATEWAY_REST_TEMPLATE) RestTemplate restTemplate,
             @Value("${server.port}") String serverPort
     ) {
         MessageProcessorFactory messageProcessorFactory = new MessageProcessorFactory();
         messageProcessorFactory.addProcessor(MessageType.DEVICE_REQUEST, new DeviceRequestMessageProcessor(
                 deviceRequestService
         ));
+        messageProcessorFactory.addProcessor(MessageType.DEVICE_BATCH_REQUEST, new DeviceBatchRequestMessageProcessor(
+                deviceBatchService,
+                objectMapper
+        ));
         messageProcessorFactory.addProcessor(MessageType.GATEWAY_COMMAND, new GatewayCommandProcessor(
                 cloudService
         ));
@@ -1,19 +1,150 @@
 package ru.pobopo.smartthing.gateway.config;
 
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClients;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManagerBuilder;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.web.client.RestTemplateBuilder;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
 import org.springframework.web.client.RestTemplate;
 
-import java.time.Duration;
-
+/**
+ * Separate pooled http clients for devices, cloud and gateway loopback calls.
+ * Every client keeps alive connections per route, evicts idle ones and has its own timeouts.
+ * Device api calls go through non-blocking client, so waiting for slow devices doesn't hold threads.
+ */
 @Configuration
 public class RestTemplateConfig {
+    public static final String DEVICE_REST_TEMPLATE = "deviceRestTemplate";
+    public static final String CLOUD_REST_TEMPLATE = "cloudRestTemplate";
+    public static final String GATEWAY_REST_TEMPLATE = "gatewayRestTemplate";
+
+    // ESP web servers can't handle many parallel connections, keep per route pool small
+    @Bean
+    public CloseableHttpClient deviceHttpClient(
+            @Value("${device.http.pool.total:64}") int maxTotal,
+            @Value("${device.http.pool.route:2}") int maxPerRoute,
+            @Value("${device.http.timeout.connect:3000}") long connectTimeout,
+            @Value("${device.http.timeout.read:5000}") long readTimeout,
+            @Value("${device.http.idle:30000}") long idleTimeout
+    ) {
+        return pooledClient(maxTotal, maxPerRoute, connectTimeout, readTimeout, idleTimeout);
+    }
+
     @Bean
-    public RestTemplate restTemplate() {
+    public CloseableHttpAsyncClient deviceAsyncHttpClient(
+            @Value("${device.http.pool.total:64}") int maxTotal,
+            @Value("${device.http.pool.route:2}") int maxPerRoute,
+            @Value("${device.http.timeout.connect:3000}") long connectTimeout,
+            @Value("${device.http.timeout.read:5000}") long readTimeout,
+            @Value("${device.http.idle:30000}") long idleTimeout
+    ) {
+        return pooledAsyncClient(maxTotal, maxPerRoute, connectTimeout, readTimeout, idleTimeout);
+    }
+
+    // For discovery probes of possibly absent hosts, separate pool so they don't take device api connections
+    @Bean
+    public CloseableHttpAsyncClient deviceProbeHttpClient(
+            @Value("${device.probe.pool.total:128}") int maxTotal,
+            @Value("${device.probe.timeout:1000}") long timeout
+    ) {
+        return pooledAsyncClient(maxTotal, 1, timeout, timeout, timeout);
+    }
+
+    @Bean
+    public CloseableHttpClient cloudHttpClient(
+            @Value("${cloud.http.pool.total:20}") int maxTotal,
+            @Value("${cloud.http.pool.route:10}") int maxPerRoute,
+            @Value("${cloud.http.timeout.connect:5000}") long connectTimeout,
+            @Value("${cloud.http.timeout.read:10000}") long readTimeout,
+            @Value("${cloud.http.idle:60000}") long idleTimeout
+    ) {
+        return pooledClient(maxTotal, maxPerRoute, connectTimeout, readTimeout, idleTimeout);
+    }
+
+    // Cloud requests proxied to gateway itself, can wait for slow devices behind it
+    @Bean
+    public CloseableHttpClient gatewayHttpClient(
+            @Value("${gateway.http.pool.total:20}") int maxTotal,
+            @Value("${gateway.http.timeout.connect:1000}") long connectTimeout,
+            @Value("${gateway.http.timeout.read:15000}") long readTimeout,
+            @Value("${gateway.http.idle:60000}") long idleTimeout
+    ) {
+        return pooledClient(maxTotal, maxTotal, connectTimeout, readTimeout, idleTimeout);
+    }
+
+    @Bean(DEVICE_REST_TEMPLATE)
+    public RestTemplate deviceRestTemplate(@Qualifier("deviceHttpClient") CloseableHttpClient httpClient) {
+        return restTemplate(httpClient);
+    }
+
+    @Bean(CLOUD_REST_TEMPLATE)
+    public RestTemplate cloudRestTemplate(@Qualifier("cloudHttpClient") CloseableHttpClient httpClient) {
+        return restTemplate(httpClient);
+    }
+
+    @Bean(GATEWAY_REST_TEMPLATE)
+    public RestTemplate gatewayRestTemplate(@Qualifier("gatewayHttpClient") CloseableHttpClient httpClient) {
+        return restTemplate(httpClient);
+    }
+
+    private RestTemplate restTemplate(CloseableHttpClient httpClient) {
         return new RestTemplateBuilder()
-                .setConnectTimeout(Duration.ofMillis(5000))
-                .setReadTimeout(Duration.ofMillis(5000))
+                .requestFactory(() -> new HttpComponentsClientHttpRequestFactory(httpClient))
+                .build();
+    }
+
+    private CloseableHttpClient pooledClient(int maxTotal, int maxPerRoute, long connectTimeout, long readTimeout, long idleTimeout) {
+        return HttpClients.custom()
+                .setConnectionManager(PoolingHttpClientConnectionManagerBuilder.create()
+                        .setMaxConnTotal(maxTotal)
+                        .setMaxConnPerRoute(maxPerRoute)
+                        .setDefaultConnectionConfig(connectionConfig(connectTimeout, readTimeout))
+                        .build())
+                .setDefaultRequestConfig(requestConfig(connectTimeout, readTimeout))
+                .evictExpiredConnections()
+                .evictIdleConnections(TimeValue.ofMilliseconds(idleTimeout))
+                .build();
+    }
+
+    private CloseableHttpAsyncClient pooledAsyncClient(int maxTotal, int maxPerRoute, long connectTimeout, long readTimeout, long idleTimeout) {
+        CloseableHttpAsyncClient client = HttpAsyncClients.custom()
+                .setConnectionManager(PoolingAsyncClientConnectionManagerBuilder.create()
+                        .setMaxConnTotal(maxTotal)
+                        .setMaxConnPerRoute(maxPerRoute)
+                        .setDefaultConnectionConfig(connectionConfig(connectTimeout, readTimeout))
+                        .build())
+                .setDefaultRequestConfig(requestConfig(connectTimeout, readTimeout))
+                .evictExpiredConnections()
+                .evictIdleConnections(TimeValue.ofMilliseconds(idleTimeout))
+                .build();
+        client.start();
+        return client;
+    }
+
+    private ConnectionConfig connectionConfig(long connectTimeout, long readTimeout) {
+        return ConnectionConfig.custom()
+                .setConnectTimeout(Timeout.ofMilliseconds(connectTimeout))
+                .setSocketTimeout(Timeout.ofMilliseconds(readTimeout))
+                // devices drop kept alive connections silently, check them before reuse
+                .setValidateAfterInactivity(TimeValue.ofSeconds(2))
+                .build();
+    }
+
+    private RequestConfig requestConfig(long connectTimeout, long readTimeout) {
+        return RequestConfig.custom()
+                .setConnectionRequestTimeout(Timeout.ofMilliseconds(connectTimeout))
+                .setResponseTimeout(Timeout.ofMilliseconds(readTimeout))
                 .build();
     }
 }
@@ -6,23 +6,47 @@ import io.swagger.v3.oas.annotations.tags.Tag;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.slf4j.event.Level;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
 import ru.pobopo.smartthing.gateway.aspect.AcceptCloudRequest;
 import ru.pobopo.smartthing.gateway.exception.BadRequestException;
+import ru.pobopo.smartthing.gateway.model.UdpListenerStats;
+import ru.pobopo.smartthing.gateway.model.device.DeviceBreakerStats;
+import ru.pobopo.smartthing.gateway.model.device.DevicePresenceStats;
+import ru.pobopo.smartthing.gateway.model.device.DevicePresenceTransition;
+import ru.pobopo.smartthing.gateway.model.device.DeviceSearchStats;
+import ru.pobopo.smartthing.gateway.model.device.DeviceSensorsSnapshot;
+import ru.pobopo.smartthing.gateway.model.device.DeviceSweepStats;
+import ru.pobopo.smartthing.gateway.model.device.FoundDevicesSnapshot;
 import ru.pobopo.smartthing.gateway.model.device.DeviceSettingsDump;
+import ru.pobopo.smartthing.gateway.model.device.SavedDevicesRefreshResponse;
 import ru.pobopo.smartthing.gateway.model.logs.DeviceLogsFilter;
+import ru.pobopo.smartthing.gateway.model.logs.DeviceLogsPage;
+import ru.pobopo.smartthing.gateway.model.logs.TcpLogsStats;
+import ru.pobopo.smartthing.gateway.service.device.DevicePresenceService;
+import ru.pobopo.smartthing.gateway.service.device.DeviceSensorsPoller;
 import ru.pobopo.smartthing.gateway.service.device.DeviceSettingsService;
+import ru.pobopo.smartthing.gateway.service.device.DeviceSweepDiscovery;
 import ru.pobopo.smartthing.gateway.service.device.DevicesSearchService;
 import ru.pobopo.smartthing.gateway.service.device.SavedDevicesService;
+import ru.pobopo.smartthing.gateway.service.device.api.DeviceCircuitBreaker;
 import ru.pobopo.smartthing.gateway.service.device.log.DeviceLogsCacheService;
+import ru.pobopo.smartthing.gateway.service.device.log.DeviceLogsStore;
+import ru.pobopo.smartthing.gateway.service.job.logs.TcpLogsListener;
+import ru.pobopo.smartthing.gateway.service.job.udp.UdpListenersJob;
 import ru.pobopo.smartthing.model.DeviceLoggerMessage;
 import ru.pobopo.smartthing.model.SavedDeviceInfo;
-import ru.pobopo.smartthing.model.device.DeviceInfo;
 
+import java.time.LocalDateTime;
 import java.util.Collection;
 import java.util.List;
-import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 @Slf4j
 @RestController
@@ -31,20 +55,127 @@ import java.util.UUID;
 @RequiredArgsConstructor
 @Tag(name = "Devices controller", description = "Find and save devices, export and import device settings dumps, get devices logs")
 public class DeviceController {
+    private static final long MAX_POLL_TIMEOUT = 60000;
+    public static final String LOGS_SEQUENCE_HEADER = "X-Logs-Sequence";
+    public static final String LOGS_NEXT_HEADER = "X-Logs-Next";
+
     private final DeviceSettingsService settingsService;
     private final DeviceLogsCacheService deviceLogsCacheService;
+    private final DeviceLogsStore deviceLogsStore;
+    private final TcpLogsListener tcpLogsListener;
     private final DevicesSearchService searchJob;
     private final SavedDevicesService savedDevicesService;
+    private final DeviceSensorsPoller sensorsPoller;
+    private final DeviceCircuitBreaker circuitBreaker;
+    private final UdpListenersJob udpListenersJob;
+    private final DeviceSweepDiscovery sweepDiscovery;
+    private final DevicePresenceService presenceService;
 
     @GetMapping("/search/enabled")
     public boolean searchEnabled() {
         return searchJob.isSearchEnabled();
     }
 
-    @Operation(summary = "Get recent found devices in local network")
-    @GetMapping("/found")
-    public Set<DeviceInfo> getDevices() {
-        return searchJob.getRecentFoundDevices();
+    @Operation(
+            summary = "Get device search statistics",
+            description = "Duplicate beacons are identical to previous beacon from the same address and aren't decoded again. " +
+                    "Device network interface is the one its address subnet belongs to, so beacons heard on several " +
+                    "interfaces are de-duplicated by payload and counted as duplicates"
+    )
+    @GetMapping("/search/stats")
+    public DeviceSearchStats searchStats() {
+        return searchJob.getStats();
+    }
+
+    @Operation(
+            summary = "Get sweep discovery statistics",
+            description = "Sweep discovery probes every host of configured ranges (device.discovery.sweep.ranges)"
+    )
+    @GetMapping("/sweep/stats")
+    public DeviceSweepStats sweepStats() {
+        return sweepDiscovery.getStats();
+    }
+
+    @Operation(
+            summary = "Get udp listeners statistics",
+            description = "Received, truncated and dropped by os datagrams per listened port"
+    )
+    @GetMapping("/udp/stats")
+    public List<UdpListenerStats> udpStats() {
+        return udpListenersJob.getStats();
+    }
+
+    @Operation(
+            summary = "Get recent found devices in local network",
+            description = "Response has ETag header, which changes only when found devices change. " +
+                    "Request with the same If-None-Match header gets 304 status without body"
+    )
+    @GetMapping(value = "/found", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<byte[]> getDevices(
+            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch
+    ) {
+        return snapshotResponse(searchJob.getFoundSnapshot(), ifNoneMatch);
+    }
+
+    @Operation(
+            summary = "Wait for found devices change",
+            description = "Returns found devices as soon as their ETag differs from If-None-Match header, " +
+                    "or 304 status if nothing changed during timeout (max 60 seconds)"
+    )
+    @GetMapping(value = "/found/poll", produces = MediaType.APPLICATION_JSON_VALUE)
+    public DeferredResult<ResponseEntity<byte[]>> pollDevices(
+            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch,
+            @RequestParam(defaultValue = "30000") long timeout
+    ) {
+        String etag = ifNoneMatch == null ? "" : ifNoneMatch.trim();
+        CompletableFuture<FoundDevicesSnapshot> change = searchJob.awaitFoundChange(etag);
+        DeferredResult<ResponseEntity<byte[]>> result = new DeferredResult<>(
+                Math.max(1, Math.min(timeout, MAX_POLL_TIMEOUT)),
+                ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag).build()
+        );
+        result.onCompletion(() -> change.cancel(false));
+        change.thenAccept((snapshot) -> result.setResult(snapshotResponse(snapshot, null)));
+        return result;
+    }
+
+    @Operation(
+            summary = "Get latest polled sensors and metrics of devices",
+            description = "Empty if sensors polling is disabled (device.sensors.poll.enabled)"
+    )
+    @GetMapping("/sensors")
+    public List<DeviceSensorsSnapshot> getSensors() {
+        return sensorsPoller.getSnapshots();
+    }
+
+    @Operation(
+            summary = "Get presence statistics of found devices",
+            description = "Uptime, flaps and beacon intervals since device was first seen. History is kept for limited " +
+                    "number of devices (device.presence.max-devices)"
+    )
+    @GetMapping("/presence")
+    public List<DevicePresenceStats> getPresence() {
+        return presenceService.getStats();
+    }
+
+    @Operation(summary = "Get found/lost transitions of device, oldest first")
+    @GetMapping("/presence/history")
+    public List<DevicePresenceTransition> getPresenceHistory(@RequestParam String ip) {
+        return presenceService.getHistory(ip);
+    }
+
+    @Operation(
+            summary = "Get devices circuit breakers state",
+            description = "Requests to devices with open circuit fail fast with 503 status"
+    )
+    @GetMapping("/breakers")
+    public List<DeviceBreakerStats> getBreakers() {
+        return circuitBreaker.getStats();
+    }
+
+    @Operation(summary = "Close device circuit and reset its statistics")
+    @DeleteMapping("/breakers")
+    public void resetBreaker(@RequestParam String ip) {
+        circuitBreaker.reset(ip);
     }
 
     @GetMapping("/saved")
@@ -62,6 +193,15 @@ public class DeviceController {
         return savedDevicesService.updateDeviceInfo(ip);
     }
 
+    @Operation(
+            summary = "Refresh info of all saved devices",
+            description = "Requests info from all saved devices in parallel and saves changed ones"
+    )
+    @PostMapping("/saved/refresh")
+    public CompletableFuture<SavedDevicesRefreshResponse> refreshSavedDevices() {
+        return savedDevicesService.refreshAll();
+    }
+
     @DeleteMapping("/saved")
     public void deleteDevice(@RequestParam String ip) throws BadRequestException {
         savedDevicesService.deleteDevice(ip);
@@ -93,19 +233,66 @@ public class DeviceController {
         settingsService.deleteSettings(id);
     }
 
-    @Operation(summary = "Get last N logs messages from devices")
+    @Operation(summary = "Tcp logs server connections and throughput")
+    @GetMapping("/logs/tcp/stats")
+    public TcpLogsStats tcpLogsStats() {
+        return tcpLogsListener.getStats();
+    }
+
+    @Operation(
+            summary = "Get last N logs messages from devices",
+            description = "Newest first. Response header " + LOGS_SEQUENCE_HEADER + " holds sequence of the newest cached message, " +
+                    "pass it as after parameter to get only newer messages next time. When there are more than limit messages, " +
+                    "header " + LOGS_NEXT_HEADER + " holds value of before parameter for the next page. " +
+                    "With from or to parameters logs are read from disk store (if it's enabled), not from cache, " +
+                    "and sequences are the store ones"
+    )
     @GetMapping("/logs")
-    public List<DeviceLoggerMessage> getLogs(
+    public ResponseEntity<List<DeviceLoggerMessage>> getLogs(
             @RequestParam(required = false) String device,
             @RequestParam(required = false) String tag,
             @RequestParam(required = false) String message,
-            @RequestParam(required = false) Level level
-    ) {
-        return deviceLogsCacheService.getLogs(DeviceLogsFilter.builder()
+            @RequestParam(required = false) Level level,
+            @RequestParam(required = false, defaultValue = "0") long after,
+            @RequestParam(required = false, defaultValue = "0") long before,
+            @RequestParam(required = false, defaultValue = "0") int limit,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime from,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime to
+    ) throws BadRequestException {
+        DeviceLogsFilter filter = DeviceLogsFilter.builder()
                 .device(device != null ? device.toLowerCase() : null)
                 .tag(tag != null ? tag.toLowerCase() : null)
                 .message(message != null ? message.toLowerCase() : null)
                 .level(level)
-                .build());
+                .build();
+        DeviceLogsPage page;
+        if (from != null || to != null) {
+            if (!deviceLogsStore.isEnabled()) {
+                throw new BadRequestException("Device logs store is disabled");
+            }
+            page = deviceLogsStore.getLogs(filter, from, to, after, before, limit);
+        } else {
+            page = deviceLogsCacheService.getLogs(filter, after, before, limit);
+        }
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+                .header(LOGS_SEQUENCE_HEADER, String.valueOf(page.getSequence()));
+        if (page.getNext() != null) {
+            response.header(LOGS_NEXT_HEADER, String.valueOf(page.getNext()));
+        }
+        return response.body(page.getLogs());
+    }
+
+    private static ResponseEntity<byte[]> snapshotResponse(FoundDevicesSnapshot snapshot, String ifNoneMatch) {
+        if (ifNoneMatch != null) {
+            for (String etag : ifNoneMatch.split(",")) {
+                if (etag.trim().equals(snapshot.getEtag())) {
+                    return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(snapshot.getEtag()).build();
+                }
+            }
+        }
+        return ResponseEntity.ok()
+                .eTag(snapshot.getEtag())
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(snapshot.getJson());
     }
 }
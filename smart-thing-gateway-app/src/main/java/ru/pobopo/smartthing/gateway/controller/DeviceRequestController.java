@@ -9,14 +9,25 @@ import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 import ru.pobopo.smartthing.gateway.aspect.AcceptCloudRequest;
 import ru.pobopo.smartthing.gateway.exception.BadRequestException;
+import ru.pobopo.smartthing.gateway.model.cache.CacheStats;
+import ru.pobopo.smartthing.gateway.model.cache.SingleFlightStats;
 import ru.pobopo.smartthing.gateway.model.device.DeviceApiMethod;
+import ru.pobopo.smartthing.gateway.model.device.DeviceBatchResponse;
+import ru.pobopo.smartthing.gateway.model.device.DeviceLimiterStats;
+import ru.pobopo.smartthing.gateway.service.device.DeviceApiCacheService;
+import ru.pobopo.smartthing.gateway.service.device.DeviceBatchService;
 import ru.pobopo.smartthing.gateway.service.device.DeviceRequestService;
+import ru.pobopo.smartthing.gateway.service.device.api.DeviceRequestLimiter;
 import ru.pobopo.smartthing.model.device.DeviceInfo;
+import ru.pobopo.smartthing.model.stomp.DeviceBatchRequest;
 import ru.pobopo.smartthing.model.stomp.DeviceRequest;
 
+import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 @Slf4j
 @RestController
@@ -25,6 +36,9 @@ import java.util.List;
 @Tag(name = "Devices controller", description = "Call device api")
 public class DeviceRequestController {
     private final DeviceRequestService deviceRequestService;
+    private final DeviceBatchService batchService;
+    private final DeviceApiCacheService cacheService;
+    private final DeviceRequestLimiter limiter;
 
     @Operation(
             summary = "Call device api method",
@@ -35,8 +49,8 @@ public class DeviceRequestController {
             )
     )
     @PostMapping
-    public ResponseEntity<String> callApi(@RequestBody DeviceRequest request) {
-        return deviceRequestService.execute(request);
+    public CompletableFuture<ResponseEntity<byte[]>> callApi(@RequestBody DeviceRequest request) {
+        return deviceRequestService.executeAsync(request);
     }
 
     @Operation(
@@ -64,12 +78,42 @@ public class DeviceRequestController {
             }
     )
     @GetMapping
-    public ResponseEntity<String> callApiByTarget(
+    public CompletableFuture<ResponseEntity<byte[]>> callApiByTarget(
             @RequestParam String target,
             @RequestParam String command,
             @RequestParam(required = false) String params
     ) throws BadRequestException {
-        return deviceRequestService.execute(target, command, params);
+        return deviceRequestService.executeAsync(target, command, params);
+    }
+
+    @Operation(
+            summary = "Call device api for many devices at once",
+            description = "Requests are executed concurrently, response contains result of every request " +
+                    "with status and latency. Each request has deadline (gateway default or 'timeout' in ms)"
+    )
+    @PostMapping("/batch")
+    public CompletableFuture<DeviceBatchResponse> callBatch(@RequestBody DeviceBatchRequest batch) throws BadRequestException {
+        return batchService.execute(batch);
+    }
+
+    @Operation(
+            summary = "Call device api for many devices at once, results are streamed",
+            description = "Server-sent events: 'result' event for every request as soon as it completes, " +
+                    "then 'summary' event with totals (without results list)"
+    )
+    @PostMapping("/batch/stream")
+    public SseEmitter callBatchStream(@RequestBody DeviceBatchRequest batch) throws BadRequestException {
+        SseEmitter emitter = new SseEmitter(0L);
+        batchService.execute(batch, (result) -> send(emitter, "result", result)).whenComplete((response, throwable) -> {
+            if (throwable != null) {
+                emitter.completeWithError(throwable);
+                return;
+            }
+            response.setResults(List.of());
+            send(emitter, "summary", response);
+            emitter.complete();
+        });
+        return emitter;
     }
 
     @AcceptCloudRequest
@@ -84,4 +128,36 @@ public class DeviceRequestController {
         return deviceRequestService.getApiMethods(DeviceInfo.builder().name(name).ip(ip).build());
     }
 
+    @Operation(summary = "Get device api responses cache statistics")
+    @GetMapping("/cache")
+    public CacheStats getCacheStats() {
+        return cacheService.getStats();
+    }
+
+    @Operation(summary = "Drop all cached device api responses")
+    @DeleteMapping("/cache")
+    public void clearCache() {
+        cacheService.clear();
+    }
+
+    @Operation(summary = "Get statistics of identical concurrent requests coalescing")
+    @GetMapping("/coalescing")
+    public SingleFlightStats getCoalescingStats() {
+        return deviceRequestService.getCoalescingStats();
+    }
+
+    @Operation(summary = "Get per device requests queue statistics")
+    @GetMapping("/limits")
+    public List<DeviceLimiterStats> getLimiterStats() {
+        return limiter.getStats();
+    }
+
+    private static void send(SseEmitter emitter, String name, Object data) {
+        try {
+            emitter.send(SseEmitter.event().name(name).data(data));
+        } catch (IOException | IllegalStateException exception) {
+            // client gone, the rest of results is dropped
+            log.debug("Failed to send batch event: {}", exception.getMessage());
+        }
+    }
 }
@@ -0,0 +1,22 @@
+package ru.pobopo.smartthing.gateway.event;
+
+import lombok.NonNull;
+import org.springframework.context.ApplicationEvent;
+import ru.pobopo.smartthing.model.device.DeviceInfo;
+
+import java.util.Objects;
+
+public class DeviceFoundEvent extends ApplicationEvent {
+    private final DeviceInfo deviceInfo;
+
+    public DeviceFoundEvent(Object source, DeviceInfo deviceInfo) {
+        super(source);
+        Objects.requireNonNull(deviceInfo);
+        this.deviceInfo = deviceInfo;
+    }
+
+    @NonNull
+    public DeviceInfo getDeviceInfo() {
+        return deviceInfo;
+    }
+}
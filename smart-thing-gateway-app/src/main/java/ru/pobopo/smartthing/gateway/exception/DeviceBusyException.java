@@ -0,0 +1,7 @@
+package ru.pobopo.smartthing.gateway.exception;
+
+public class DeviceBusyException extends RuntimeException {
+    public DeviceBusyException(String message) {
+        super(message);
+    }
+}
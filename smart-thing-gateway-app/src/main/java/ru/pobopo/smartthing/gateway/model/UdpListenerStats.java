@@ -0,0 +1,29 @@
+package ru.pobopo.smartthing.gateway.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class UdpListenerStats {
+    private int port;
+    private List<String> handlers;
+    private List<String> groups;
+    private List<String> networkInterfaces;
+    private boolean listening;
+    // Actual socket receive buffer size in bytes
+    private int receiveBuffer;
+    private long received;
+    private long bytes;
+    // Datagrams longer than max packet size, dropped
+    private long truncated;
+    private long handlerErrors;
+    // Datagrams dropped by os because receive buffer was full, -1 if unknown
+    private long kernelDrops;
+}
@@ -0,0 +1,22 @@
+package ru.pobopo.smartthing.gateway.model.cache;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class CacheStats {
+    private int entries;
+    private int maxEntries;
+    private long size;
+    private long maxSize;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long expirations;
+    private long rejections;
+}
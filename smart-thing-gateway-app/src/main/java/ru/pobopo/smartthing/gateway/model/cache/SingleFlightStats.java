@@ -0,0 +1,16 @@
+package ru.pobopo.smartthing.gateway.model.cache;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class SingleFlightStats {
+    // calls really sent
+    private long executed;
+    // calls joined to already running identical call
+    private long coalesced;
+    private int inFlight;
+}
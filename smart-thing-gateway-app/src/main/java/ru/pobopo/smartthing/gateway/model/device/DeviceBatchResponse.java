@@ -0,0 +1,22 @@
+package ru.pobopo.smartthing.gateway.model.device;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class DeviceBatchResponse {
+    private int total;
+    private int succeeded;
+    private int failed;
+    private int timedOut;
+    private long totalMillis;
+    // Ordered as requests in batch, empty in streamed summary
+    private List<DeviceBatchResult> results;
+}
@@ -0,0 +1,21 @@
+package ru.pobopo.smartthing.gateway.model.device;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import ru.pobopo.smartthing.model.stomp.DeviceRequest;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class DeviceBatchResult {
+    // Position of request in batch
+    private int index;
+    private DeviceRequest request;
+    private int status;
+    private String body;
+    private String error;
+    private long latencyMillis;
+}
@@ -0,0 +1,24 @@
+package ru.pobopo.smartthing.gateway.model.device;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import ru.pobopo.smartthing.gateway.service.device.api.DeviceCircuitBreaker;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class DeviceBreakerStats {
+    private String ip;
+    private DeviceCircuitBreaker.State state;
+    private int consecutiveFailures;
+    private long failures;
+    private long rejected;
+    private String lastError;
+    // Epoch millis of last state change
+    private long stateChangedAt;
+    // Millis until next health probe, 0 if circuit isn't open
+    private long retryIn;
+}
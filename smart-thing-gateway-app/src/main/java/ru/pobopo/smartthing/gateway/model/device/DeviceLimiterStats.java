@@ -0,0 +1,21 @@
+package ru.pobopo.smartthing.gateway.model.device;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class DeviceLimiterStats {
+    private String ip;
+    private int active;
+    private int queued;
+    private long acquired;
+    private long rejected;
+    private long timedOut;
+    private long avgWaitMillis;
+    private long maxWaitMillis;
+}
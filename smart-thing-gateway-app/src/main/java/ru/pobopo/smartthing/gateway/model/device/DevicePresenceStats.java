@@ -0,0 +1,28 @@
+package ru.pobopo.smartthing.gateway.model.device;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class DevicePresenceStats {
+    private String ip;
+    private String name;
+    private boolean present;
+    // Epoch millis
+    private long firstSeen;
+    private long lastSeen;
+    // Share of time since first seen, when device was found
+    private double uptimePercent;
+    // How many times device was lost
+    private int flaps;
+    private long beacons;
+    // Beacon inter-arrival statistics in millis
+    private long beaconIntervalMean;
+    private long beaconIntervalStdDev;
+    private long beaconIntervalMax;
+}
@@ -0,0 +1,15 @@
+package ru.pobopo.smartthing.gateway.model.device;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class DevicePresenceTransition {
+    // Epoch millis
+    private long timestamp;
+    // True if device was found, false if lost
+    private boolean found;
+}
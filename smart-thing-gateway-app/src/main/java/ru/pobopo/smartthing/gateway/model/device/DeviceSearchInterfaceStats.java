@@ -0,0 +1,21 @@
+package ru.pobopo.smartthing.gateway.model.device;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class DeviceSearchInterfaceStats {
+    private String networkInterface;
+    private int foundDevices;
+    private long beacons;
+    private double beaconsPerSecond;
+    private long decodedBeacons;
+    // Same as previous beacon from the source, not decoded again
+    private long duplicateBeacons;
+    private long invalidBeacons;
+}
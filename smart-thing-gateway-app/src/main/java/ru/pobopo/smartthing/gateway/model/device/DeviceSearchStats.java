@@ -0,0 +1,22 @@
+package ru.pobopo.smartthing.gateway.model.device;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class DeviceSearchStats {
+    private int foundDevices;
+    private long decodedBeacons;
+    private long duplicateBeacons;
+    private long invalidBeacons;
+    // Beacons not counted in presence statistics, because presence service didn't keep up
+    private long droppedPresenceBeacons;
+    private List<DeviceSearchInterfaceStats> interfaces;
+}
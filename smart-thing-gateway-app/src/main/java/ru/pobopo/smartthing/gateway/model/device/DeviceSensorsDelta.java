@@ -0,0 +1,24 @@
+package ru.pobopo.smartthing.gateway.model.device;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class DeviceSensorsDelta {
+    private String ip;
+    private String name;
+    // Only changed or added fields, null if nothing changed
+    private JsonNode sensors;
+    private JsonNode metrics;
+    // Sensors which disappeared from device response
+    private List<String> removedSensors;
+    private long timestamp;
+}
@@ -0,0 +1,24 @@
+package ru.pobopo.smartthing.gateway.model.device;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class DeviceSensorsSnapshot {
+    private String ip;
+    private String name;
+    private JsonNode sensors;
+    private JsonNode metrics;
+    // Epoch millis of last successful poll
+    private long sensorsUpdatedAt;
+    private long metricsUpdatedAt;
+    // Current adaptive poll interval in millis
+    private long pollInterval;
+    private int failures;
+}
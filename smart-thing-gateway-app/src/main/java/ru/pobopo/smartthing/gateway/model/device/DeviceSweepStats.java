@@ -0,0 +1,25 @@
+package ru.pobopo.smartthing.gateway.model.device;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class DeviceSweepStats {
+    private boolean enabled;
+    private List<String> ranges;
+    private long hosts;
+    // Hosts probed in current sweep
+    private long progress;
+    private long sweeps;
+    private long lastSweepMillis;
+    private long probes;
+    private int inFlight;
+    private int foundDevices;
+}
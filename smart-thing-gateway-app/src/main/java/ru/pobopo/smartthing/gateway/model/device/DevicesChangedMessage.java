@@ -0,0 +1,19 @@
+package ru.pobopo.smartthing.gateway.model.device;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import ru.pobopo.smartthing.model.device.DeviceInfo;
+
+import java.util.List;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class DevicesChangedMessage {
+    private List<DeviceInfo> added;
+    private List<DeviceInfo> removed;
+    private long timestamp;
+}
@@ -0,0 +1,19 @@
+package ru.pobopo.smartthing.gateway.model.device;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import ru.pobopo.smartthing.model.device.DeviceInfo;
+
+import java.util.List;
+
+/**
+ * Immutable found devices list with its json, built once per change
+ */
+@Getter
+@AllArgsConstructor
+public class FoundDevicesSnapshot {
+    private final long version;
+    private final String etag;
+    private final List<DeviceInfo> devices;
+    private final byte[] json;
+}
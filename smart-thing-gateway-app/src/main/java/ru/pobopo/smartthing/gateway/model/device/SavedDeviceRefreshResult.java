@@ -0,0 +1,18 @@
+package ru.pobopo.smartthing.gateway.model.device;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class SavedDeviceRefreshResult {
+    private String ip;
+    private String name;
+    private SavedDeviceRefreshStatus status;
+    private long latencyMillis;
+    private String error;
+}
@@ -0,0 +1,7 @@
+package ru.pobopo.smartthing.gateway.model.device;
+
+public enum SavedDeviceRefreshStatus {
+    UPDATED,
+    UNCHANGED,
+    FAILED
+}
@@ -0,0 +1,21 @@
+package ru.pobopo.smartthing.gateway.model.device;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class SavedDevicesRefreshResponse {
+    private int total;
+    private int updated;
+    private int unchanged;
+    private int failed;
+    private long totalMillis;
+    private List<SavedDeviceRefreshResult> results;
+}
@@ -0,0 +1,19 @@
+package ru.pobopo.smartthing.gateway.model.logs;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import ru.pobopo.smartthing.model.DeviceLoggerMessage;
+
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class DeviceLogsPage {
+    private List<DeviceLoggerMessage> logs;
+    // Sequence of the newest cached message at the time of reading, to ask only for newer ones next time
+    private long sequence;
+    // Pass as before to get the next page, null if there are no more messages
+    private Long next;
+}
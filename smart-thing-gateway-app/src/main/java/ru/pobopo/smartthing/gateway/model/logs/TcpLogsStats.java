@@ -0,0 +1,31 @@
+package ru.pobopo.smartthing.gateway.model.logs;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class TcpLogsStats {
+    private int port;
+    private boolean listening;
+    private int connections;
+    private int maxConnections;
+    // Connections not being read right now, because of line rate limit or processing backlog
+    private int pausedConnections;
+    private long accepted;
+    // Connections closed right away because of connections limit
+    private long rejected;
+    private long idleClosed;
+    private long lines;
+    private long bytes;
+    // Lines longer than max line size, dropped
+    private long truncated;
+    private double linesPerSecond;
+    private double bytesPerSecond;
+    // Messages waiting for logs consumers
+    private int pending;
+}
@@ -80,6 +80,26 @@ public class FileRepository<T> {
         objectMapper.writeValue(file.toFile(), value);
     }
 
+    /**
+     * Updates several objects at once. All files are checked before writing,
+     * so unknown object fails the whole batch instead of leaving it half written.
+     */
+    @SneakyThrows
+    public void updateAll(Collection<T> values) {
+        List<Path> files = new ArrayList<>(values.size());
+        for (T value : values) {
+            Path file = objectPath(getId(value));
+            if (!Files.exists(file)) {
+                throw new IllegalStateException("Can't find given object file");
+            }
+            files.add(file);
+        }
+        Iterator<Path> file = files.iterator();
+        for (T value : values) {
+            objectMapper.writeValue(file.next().toFile(), value);
+        }
+    }
+
     @SneakyThrows
     public void delete(UUID id) {
         Path file = objectPath(id);
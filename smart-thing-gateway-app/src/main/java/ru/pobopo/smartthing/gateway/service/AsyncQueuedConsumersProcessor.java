@@ -30,6 +30,10 @@ public class AsyncQueuedConsumersProcessor<C extends Consumer<D>, D> extends Thr
         return processingQueue.offer(data);
     }
 
+    public int getPending() {
+        return processingQueue.size();
+    }
+
     @Override
     public void run() {
         while (!Thread.interrupted()) {
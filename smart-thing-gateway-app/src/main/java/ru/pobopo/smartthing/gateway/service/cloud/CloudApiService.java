@@ -5,6 +5,7 @@ import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
@@ -12,6 +13,7 @@ import org.springframework.http.HttpMethod;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Component;
 import org.springframework.web.client.RestTemplate;
+import ru.pobopo.smartthing.gateway.config.RestTemplateConfig;
 import ru.pobopo.smartthing.gateway.event.CloudLoginEvent;
 import ru.pobopo.smartthing.gateway.exception.CloudConfigMissingException;
 import ru.pobopo.smartthing.gateway.exception.StorageException;
@@ -38,7 +40,11 @@ public class CloudApiService {
     private CloudConfig cloudConfig;
 
     @Autowired
-    public CloudApiService(CloudDataRepository cloudDataRepository, RestTemplate restTemplate, ApplicationEventPublisher applicationEventPublisher) {
+    public CloudApiService(
+            CloudDataRepository cloudDataRepository,
+            @Qualifier(RestTemplateConfig.CLOUD_REST_TEMPLATE) RestTemplate restTemplate,
+            ApplicationEventPublisher applicationEventPublisher
+    ) {
         this.cloudDataRepository = cloudDataRepository;
         this.restTemplate = restTemplate;
         this.applicationEventPublisher = applicationEventPublisher;
@@ -112,12 +118,12 @@ public class CloudApiService {
         );
     }
 
-    public ResponseEntity<String> sendDeviceRequest(DeviceRequest request) {
+    public ResponseEntity<byte[]> sendDeviceRequest(DeviceRequest request) {
         return basicRequest(
                 HttpMethod.POST,
                 "/api/gateway/requests/device",
                 request,
-                String.class
+                byte[].class
         );
     }
 
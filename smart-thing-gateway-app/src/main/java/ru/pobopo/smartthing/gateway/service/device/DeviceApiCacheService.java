@@ -0,0 +1,145 @@
+package ru.pobopo.smartthing.gateway.service.device;
+
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.ResponseEntity;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import ru.pobopo.smartthing.gateway.cache.BoundedTtlCache;
+import ru.pobopo.smartthing.gateway.model.cache.CacheStats;
+import ru.pobopo.smartthing.model.stomp.DeviceRequest;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+@Slf4j
+@Service
+public class DeviceApiCacheService {
+    @Value("${device.api.cache.enabled:true}")
+    private boolean cacheEnabled;
+    @Value("${device.api.cache.ttl:1500}")
+    private long defaultTtl;
+    @Value("${device.api.cache.max-entries:500}")
+    private int maxEntries;
+    @Value("${device.api.cache.max-size:4194304}")
+    private long maxSize;
+    // Format: command:ttl;command:ttl
+    @Value("${device.api.cache.commands.ttl:}")
+    private String commandsTtl;
+    // Format: command;command
+    @Value("${device.api.cache.commands.mutating:}")
+    private String mutatingCommands;
+
+    private final Map<String, Long> ttlByCommand = new HashMap<>();
+    private final Set<String> mutating = new HashSet<>();
+    private BoundedTtlCache<DeviceRequest, ResponseEntity<byte[]>> cache;
+    // bumped by every mutating command of device, guarded by itself
+    private final Map<String, Long> generations = new HashMap<>();
+
+    @PostConstruct
+    public void init() {
+        cache = new BoundedTtlCache<>(maxEntries, maxSize, DeviceApiCacheService::responseSize);
+
+        if (StringUtils.isNotBlank(commandsTtl)) {
+            for (String pair : commandsTtl.split(";")) {
+                if (StringUtils.isBlank(pair)) {
+                    continue;
+                }
+                String[] buff = pair.split(":");
+                if (buff.length != 2) {
+                    throw new IllegalArgumentException("Bad command ttl value: " + pair);
+                }
+                ttlByCommand.put(buff[0].trim(), Long.parseLong(buff[1].trim()));
+            }
+        }
+        if (StringUtils.isNotBlank(mutatingCommands)) {
+            for (String command : mutatingCommands.split(";")) {
+                if (StringUtils.isNotBlank(command)) {
+                    mutating.add(command.trim());
+                }
+            }
+        }
+        log.info("Device api cache enabled={}, commands ttl={}, mutating commands={}", cacheEnabled, ttlByCommand, mutating);
+    }
+
+    public boolean isMutating(DeviceRequest request) {
+        return mutating.contains(request.getCommand());
+    }
+
+    public ResponseEntity<byte[]> get(DeviceRequest request) {
+        if (!cacheEnabled || isMutating(request)) {
+            return null;
+        }
+        return cache.get(request);
+    }
+
+    /**
+     * Generation of request device, must be taken before sending request and passed to {@link #put}
+     */
+    public long getGeneration(DeviceRequest request) {
+        synchronized (generations) {
+            return generations.getOrDefault(deviceKey(request), 0L);
+        }
+    }
+
+    /**
+     * Caches read response, unless device got mutating command since generation was taken:
+     * response of read sent before mutation could be cached after invalidation otherwise
+     */
+    public void put(DeviceRequest request, ResponseEntity<byte[]> response, long generation) {
+        if (!cacheEnabled) {
+            return;
+        }
+        String key = deviceKey(request);
+        if (isMutating(request)) {
+            synchronized (generations) {
+                generations.merge(key, 1L, Long::sum);
+                // device state changed, cached reads are stale now
+                int removed = cache.invalidate((cached) -> StringUtils.equals(cached.getDevice(), request.getDevice())
+                        && StringUtils.equals(cached.getGatewayName(), request.getGatewayName()));
+                log.debug("Mutating command {}, invalidated {} cache entries", request.getCommand(), removed);
+            }
+            return;
+        }
+        if (response == null || !response.getStatusCode().is2xxSuccessful()) {
+            return;
+        }
+        synchronized (generations) {
+            if (generations.getOrDefault(key, 0L) != generation) {
+                log.debug("Device {} got mutating command during request {}, not caching it", request.getDevice(), request.getCommand());
+                return;
+            }
+            cache.put(request, response, ttlByCommand.getOrDefault(request.getCommand(), defaultTtl));
+        }
+    }
+
+    public CacheStats getStats() {
+        return cache.getStats();
+    }
+
+    public void clear() {
+        cache.clear();
+        log.info("Device api cache cleared");
+    }
+
+    @Scheduled(fixedDelayString = "${device.api.cache.sweep:5000}")
+    public void sweep() {
+        int removed = cache.evictExpired();
+        if (removed > 0) {
+            log.debug("Removed {} expired device api cache entries", removed);
+        }
+    }
+
+    private static String deviceKey(DeviceRequest request) {
+        return StringUtils.defaultString(request.getGatewayName()) + "@" + StringUtils.defaultString(request.getDevice());
+    }
+
+    private static long responseSize(ResponseEntity<byte[]> response) {
+        byte[] body = response.getBody();
+        return body == null ? 0 : body.length;
+    }
+}
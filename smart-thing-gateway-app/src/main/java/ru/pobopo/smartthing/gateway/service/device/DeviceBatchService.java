@@ -0,0 +1,221 @@
+package ru.pobopo.smartthing.gateway.service.device;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Service;
+import ru.pobopo.smartthing.gateway.exception.BadRequestException;
+import ru.pobopo.smartthing.gateway.exception.DeviceApiException;
+import ru.pobopo.smartthing.gateway.exception.DeviceBusyException;
+import ru.pobopo.smartthing.gateway.model.device.DeviceBatchResponse;
+import ru.pobopo.smartthing.gateway.model.device.DeviceBatchResult;
+import ru.pobopo.smartthing.gateway.service.device.api.DeviceResponses;
+import ru.pobopo.smartthing.model.stomp.DeviceBatchRequest;
+import ru.pobopo.smartthing.model.stomp.DeviceRequest;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Executes many device requests concurrently.
+ * Number of requests running at once is limited for all batches together,
+ * every request has its own deadline counted from batch start (queue time included).
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class DeviceBatchService {
+    private final DeviceRequestService requestService;
+
+    @Value("${device.api.batch.parallelism:32}")
+    private int parallelism;
+    @Value("${device.api.batch.timeout:5000}")
+    private long defaultTimeout;
+    @Value("${device.api.batch.max-size:200}")
+    private int maxSize;
+
+    private final Deque<Supplier<CompletableFuture<?>>> pending = new ArrayDeque<>();
+    private int running;
+
+    public CompletableFuture<DeviceBatchResponse> execute(DeviceBatchRequest batch) throws BadRequestException {
+        return execute(batch, (result) -> {});
+    }
+
+    /**
+     * @param onResult called for every request as soon as its result is ready, in completion order
+     */
+    public CompletableFuture<DeviceBatchResponse> execute(
+            DeviceBatchRequest batch,
+            Consumer<DeviceBatchResult> onResult
+    ) throws BadRequestException {
+        List<DeviceRequest> requests = validate(batch);
+        long timeout = batch.getTimeout() == null ? defaultTimeout : batch.getTimeout();
+        long startedAt = System.nanoTime();
+        log.info("Executing batch of {} device requests (timeout={}ms)", requests.size(), timeout);
+
+        DeviceBatchResult[] results = new DeviceBatchResult[requests.size()];
+        CompletableFuture<?>[] futures = new CompletableFuture[requests.size()];
+        for (int i = 0; i < requests.size(); i++) {
+            int index = i;
+            DeviceRequest request = requests.get(i);
+            CompletableFuture<DeviceBatchResult> item = new CompletableFuture<DeviceBatchResult>()
+                    .completeOnTimeout(timedOut(index, request, timeout), timeout, TimeUnit.MILLISECONDS);
+            futures[i] = item.thenAccept((result) -> {
+                results[index] = result;
+                try {
+                    onResult.accept(result);
+                } catch (Exception exception) {
+                    log.error("Batch result consumer failed: {}", exception.getMessage());
+                }
+            });
+            schedule(() -> call(index, request, startedAt, item));
+        }
+
+        return CompletableFuture.allOf(futures).thenApply((ignored) -> summary(Arrays.asList(results), startedAt));
+    }
+
+    private List<DeviceRequest> validate(DeviceBatchRequest batch) throws BadRequestException {
+        if (batch == null || batch.getRequests() == null || batch.getRequests().isEmpty()) {
+            throw new BadRequestException("Batch requests can't be empty");
+        }
+        if (batch.getRequests().size() > maxSize) {
+            throw new BadRequestException("Too many requests in batch, max is " + maxSize);
+        }
+        if (batch.getTimeout() != null && batch.getTimeout() <= 0) {
+            throw new BadRequestException("Batch timeout should be positive");
+        }
+        for (DeviceRequest request : batch.getRequests()) {
+            if (request == null) {
+                throw new BadRequestException("Batch request can't be null");
+            }
+        }
+        return batch.getRequests();
+    }
+
+    private CompletableFuture<?> call(int index, DeviceRequest request, long startedAt, CompletableFuture<DeviceBatchResult> item) {
+        if (item.isDone()) {
+            // deadline passed while request was waiting in queue
+            return item;
+        }
+        CompletableFuture<ResponseEntity<byte[]>> response;
+        try {
+            response = requestService.executeAsync(request);
+        } catch (Exception exception) {
+            response = CompletableFuture.failedFuture(exception);
+        }
+        response.whenComplete((result, throwable) -> item.complete(throwable == null
+                ? success(index, request, startedAt, result)
+                : failure(index, request, startedAt, throwable)
+        ));
+        // slot is released on deadline too, device call itself is bounded by device limiter
+        return item;
+    }
+
+    private void schedule(Supplier<CompletableFuture<?>> task) {
+        synchronized (pending) {
+            if (running >= parallelism) {
+                pending.add(task);
+                return;
+            }
+            running++;
+        }
+        run(task);
+    }
+
+    // runs tasks while they complete synchronously (cache hits), otherwise continues on completion
+    private void run(Supplier<CompletableFuture<?>> task) {
+        while (task != null) {
+            CompletableFuture<?> future = task.get();
+            if (!future.isDone()) {
+                future.whenComplete((result, throwable) -> run(next()));
+                return;
+            }
+            task = next();
+        }
+    }
+
+    private Supplier<CompletableFuture<?>> next() {
+        synchronized (pending) {
+            Supplier<CompletableFuture<?>> task = pending.poll();
+            if (task == null) {
+                running--;
+            }
+            return task;
+        }
+    }
+
+    private DeviceBatchResult success(int index, DeviceRequest request, long startedAt, ResponseEntity<byte[]> response) {
+        return DeviceBatchResult.builder()
+                .index(index)
+                .request(request)
+                .status(response.getStatusCode().value())
+                .body(DeviceResponses.bodyAsString(response))
+                .latencyMillis(elapsed(startedAt))
+                .build();
+    }
+
+    private DeviceBatchResult failure(int index, DeviceRequest request, long startedAt, Throwable throwable) {
+        Throwable cause = throwable instanceof CompletionException && throwable.getCause() != null
+                ? throwable.getCause()
+                : throwable;
+        HttpStatus status;
+        if (cause instanceof BadRequestException || cause instanceof DeviceApiException) {
+            status = HttpStatus.BAD_REQUEST;
+        } else if (cause instanceof DeviceBusyException) {
+            status = HttpStatus.TOO_MANY_REQUESTS;
+        } else {
+            log.error("Batch request {} failed", request, cause);
+            status = HttpStatus.INTERNAL_SERVER_ERROR;
+        }
+        return DeviceBatchResult.builder()
+                .index(index)
+                .request(request)
+                .status(status.value())
+                .error(cause.getMessage())
+                .latencyMillis(elapsed(startedAt))
+                .build();
+    }
+
+    private DeviceBatchResult timedOut(int index, DeviceRequest request, long timeout) {
+        return DeviceBatchResult.builder()
+                .index(index)
+                .request(request)
+                .status(HttpStatus.GATEWAY_TIMEOUT.value())
+                .error("Request timed out")
+                .latencyMillis(timeout)
+                .build();
+    }
+
+    private DeviceBatchResponse summary(List<DeviceBatchResult> results, long startedAt) {
+        int succeeded = 0;
+        int timedOut = 0;
+        for (DeviceBatchResult result : results) {
+            if (result.getStatus() >= 200 && result.getStatus() < 300) {
+                succeeded++;
+            } else if (result.getStatus() == HttpStatus.GATEWAY_TIMEOUT.value()) {
+                timedOut++;
+            }
+        }
+        return DeviceBatchResponse.builder()
+                .total(results.size())
+                .succeeded(succeeded)
+                .failed(results.size() - succeeded)
+                .timedOut(timedOut)
+                .totalMillis(elapsed(startedAt))
+                .results(results)
+                .build();
+    }
+
+    private static long elapsed(long startedAt) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+    }
+}
@@ -0,0 +1,150 @@
+package ru.pobopo.smartthing.gateway.service.device;
+
+import org.apache.commons.lang3.StringUtils;
+import ru.pobopo.smartthing.model.device.DeviceInfo;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decodes device multicast beacons ({@code ip;type;name;stVersion;board[;version]}) straight from packet buffer.
+ * Keeps last beacon bytes per source address, so identical beacon can be matched to previously decoded
+ * device info without any decoding or allocation.
+ * Produces the same result as {@link DeviceInfo#fromMulticastMessage(String)}.
+ * Not thread safe, should be used by the receiving thread only.
+ */
+public class DeviceBeaconDecoder {
+    private static final byte SEPARATOR = ';';
+    private static final int MIN_FIELDS = 5;
+    private static final int VERSION_FIELDS = 6;
+    private static final int MAX_SOURCES = 1024;
+
+    private final Map<InetAddress, Beacon> beacons = new HashMap<>();
+    // field bounds of current message: start, end pairs
+    private final int[] bounds = new int[VERSION_FIELDS * 2];
+    private byte[] chars = new byte[256];
+
+    /**
+     * Device info decoded from previous beacon of the source, if this beacon is the same
+     * @param packet beacon bytes between position and limit, buffer position isn't changed
+     */
+    public DeviceInfo getSame(InetAddress source, ByteBuffer packet) {
+        Beacon beacon = beacons.get(source);
+        return beacon != null && beacon.matches(packet) ? beacon.info : null;
+    }
+
+    /**
+     * Decodes beacon and remembers it as the last beacon of the source
+     * @param packet beacon bytes between position and limit, buffer position isn't changed
+     * @return new device info or null if beacon is invalid
+     */
+    public DeviceInfo decode(InetAddress source, ByteBuffer packet) {
+        DeviceInfo info = parse(packet);
+        if (info == null) {
+            return null;
+        }
+
+        Beacon beacon = beacons.get(source);
+        if (beacon == null) {
+            if (beacons.size() >= MAX_SOURCES) {
+                beacons.clear();
+            }
+            beacon = new Beacon();
+            beacons.put(source, beacon);
+        }
+        beacon.update(packet, info);
+        return info;
+    }
+
+    private DeviceInfo parse(ByteBuffer packet) {
+        if (isBlank(packet)) {
+            return null;
+        }
+
+        int end = packet.limit();
+        int fields = 0;
+        int start = packet.position();
+        // like String.split: count all fields, but trailing empty ones don't count
+        int count = 0;
+        for (int i = start; i <= end; i++) {
+            if (i < end && packet.get(i) != SEPARATOR) {
+                continue;
+            }
+            if (fields < VERSION_FIELDS) {
+                bounds[fields * 2] = start;
+                bounds[fields * 2 + 1] = i;
+            }
+            fields++;
+            if (i > start) {
+                count = fields;
+            }
+            start = i + 1;
+        }
+        // String.split returns the whole string if there is no match, even if it's empty
+        if (count == 0) {
+            count = 1;
+        }
+        if (count < MIN_FIELDS) {
+            return null;
+        }
+
+        DeviceInfo.DeviceInfoBuilder builder = DeviceInfo.builder()
+                .ip(field(packet, 0))
+                .type(field(packet, 1))
+                .name(field(packet, 2))
+                .stVersion(field(packet, 3))
+                .board(field(packet, 4));
+        if (count == VERSION_FIELDS) {
+            builder.version(field(packet, 5));
+        }
+        return builder.build();
+    }
+
+    private String field(ByteBuffer packet, int index) {
+        int start = bounds[index * 2];
+        int length = bounds[index * 2 + 1] - start;
+        if (chars.length < length) {
+            chars = new byte[length];
+        }
+        packet.get(start, chars, 0, length);
+        return new String(chars, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private static boolean isBlank(ByteBuffer packet) {
+        boolean ascii = true;
+        for (int i = packet.position(); i < packet.limit(); i++) {
+            byte b = packet.get(i);
+            if (b < 0) {
+                ascii = false;
+            } else if (!Character.isWhitespace(b)) {
+                return false;
+            }
+        }
+        // only whitespaces and non-ascii chars left, which still can be unicode spaces
+        return ascii || StringUtils.isBlank(StandardCharsets.UTF_8.decode(packet.duplicate()));
+    }
+
+    private static class Beacon {
+        // last beacon bytes between 0 and limit
+        private ByteBuffer bytes = ByteBuffer.allocate(0);
+        private DeviceInfo info;
+
+        private boolean matches(ByteBuffer packet) {
+            return bytes.mismatch(packet) == -1;
+        }
+
+        private void update(ByteBuffer packet, DeviceInfo info) {
+            int length = packet.remaining();
+            if (bytes.capacity() < length) {
+                bytes = ByteBuffer.allocate(length);
+            }
+            bytes.clear();
+            bytes.put(0, packet, packet.position(), length);
+            bytes.limit(length);
+            this.info = info;
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package ru.pobopo.smartthing.gateway.service.device;
+
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import ru.pobopo.smartthing.gateway.event.DeviceFoundEvent;
+import ru.pobopo.smartthing.gateway.event.DeviceLostEvent;
+import ru.pobopo.smartthing.gateway.model.device.DevicePresenceStats;
+import ru.pobopo.smartthing.gateway.model.device.DevicePresenceTransition;
+import ru.pobopo.smartthing.model.device.DeviceInfo;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Presence history of found devices: found/lost transitions and beacon inter-arrival statistics.
+ * All state lives in arrays allocated on start, for fixed number of devices with fixed history length each.
+ * When there is no free slot, the device not seen for the longest time is forgotten.
+ * Beacons come from udp selector thread, which must not block, so they are only written with their receive time
+ * to a preallocated ring and applied under lock by readers and by periodic drain. Beacons over ring capacity are dropped.
+ */
+@Slf4j
+@Component
+public class DevicePresenceService {
+    @Value("${device.presence.max-devices:256}")
+    private int maxDevices;
+    @Value("${device.presence.history:64}")
+    private int historySize;
+    @Value("${device.presence.max-queued-beacons:10000}")
+    private int maxQueuedBeacons;
+
+    // beacons ring, written only by udp selector thread and read only under lock
+    private String[] beaconIps;
+    private long[] beaconNanos;
+    private long[] beaconMillis;
+    private final AtomicLong beaconsHead = new AtomicLong();
+    private final AtomicLong beaconsTail = new AtomicLong();
+    private volatile long droppedBeacons;
+
+    private final Map<String, Integer> slots = new HashMap<>();
+
+    private String[] ips;
+    private String[] names;
+    private boolean[] present;
+    private long[] firstSeen;
+    private long[] lastSeen;
+    private long[] presentSince;
+    private long[] presentMillis;
+    private int[] flaps;
+
+    private long[] beacons;
+    private long[] lastBeaconNanos;
+    // Welford's running mean and sum of squared deviations of beacon intervals in millis
+    private double[] intervalMean;
+    private double[] intervalM2;
+    private long[] intervalMax;
+
+    // transitions of slot i are in [i * historySize, (i + 1) * historySize), time << 1 | found
+    private long[] history;
+    private int[] historyHead;
+    private int[] historyCount;
+
+    @PostConstruct
+    public void init() {
+        maxQueuedBeacons = Math.max(1, maxQueuedBeacons);
+        beaconIps = new String[maxQueuedBeacons];
+        beaconNanos = new long[maxQueuedBeacons];
+        beaconMillis = new long[maxQueuedBeacons];
+        ips = new String[maxDevices];
+        names = new String[maxDevices];
+        present = new boolean[maxDevices];
+        firstSeen = new long[maxDevices];
+        lastSeen = new long[maxDevices];
+        presentSince = new long[maxDevices];
+        presentMillis = new long[maxDevices];
+        flaps = new int[maxDevices];
+        beacons = new long[maxDevices];
+        lastBeaconNanos = new long[maxDevices];
+        intervalMean = new double[maxDevices];
+        intervalM2 = new double[maxDevices];
+        intervalMax = new long[maxDevices];
+        history = new long[maxDevices * historySize];
+        historyHead = new int[maxDevices];
+        historyCount = new int[maxDevices];
+    }
+
+    @EventListener
+    public synchronized void onDeviceFound(DeviceFoundEvent event) {
+        DeviceInfo info = event.getDeviceInfo();
+        int slot = slot(info.getIp());
+        long now = System.currentTimeMillis();
+        names[slot] = info.getName();
+        lastSeen[slot] = now;
+        if (!present[slot]) {
+            present[slot] = true;
+            presentSince[slot] = now;
+            addTransition(slot, now, true);
+        }
+    }
+
+    @EventListener
+    public synchronized void onDeviceLost(DeviceLostEvent event) {
+        Integer slot = slots.get(event.getDeviceInfo().getIp());
+        if (slot == null || !present[slot]) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        present[slot] = false;
+        presentMillis[slot] += now - presentSince[slot];
+        flaps[slot]++;
+        addTransition(slot, now, false);
+    }
+
+    /**
+     * Doesn't lock or allocate, beacon is applied later. Called only by udp selector thread.
+     * Beacons over max queued are dropped
+     */
+    public void onBeacon(String ip) {
+        long head = beaconsHead.getPlain();
+        if (head - beaconsTail.getAcquire() >= maxQueuedBeacons) {
+            droppedBeacons++;
+            return;
+        }
+        int index = (int) (head % maxQueuedBeacons);
+        beaconIps[index] = ip;
+        beaconNanos[index] = System.nanoTime();
+        beaconMillis[index] = System.currentTimeMillis();
+        beaconsHead.setRelease(head + 1);
+    }
+
+    public long getDroppedBeacons() {
+        return droppedBeacons;
+    }
+
+    @Scheduled(fixedDelayString = "${device.presence.drain-interval:1000}")
+    public synchronized void drainBeacons() {
+        long tail = beaconsTail.getPlain();
+        long head = beaconsHead.getAcquire();
+        for (; tail < head; tail++) {
+            int index = (int) (tail % maxQueuedBeacons);
+            applyBeacon(beaconIps[index], beaconNanos[index], beaconMillis[index]);
+        }
+        beaconsTail.setRelease(tail);
+    }
+
+    public synchronized List<DevicePresenceStats> getStats() {
+        drainBeacons();
+        long now = System.currentTimeMillis();
+        List<DevicePresenceStats> result = new ArrayList<>(slots.size());
+        for (int slot : slots.values()) {
+            result.add(stats(slot, now));
+        }
+        result.sort(Comparator.comparing(DevicePresenceStats::getIp));
+        return result;
+    }
+
+    public synchronized DevicePresenceStats getStats(String ip) {
+        drainBeacons();
+        Integer slot = slots.get(ip);
+        return slot == null ? null : stats(slot, System.currentTimeMillis());
+    }
+
+    /**
+     * Found/lost transitions of device, oldest first
+     */
+    public synchronized List<DevicePresenceTransition> getHistory(String ip) {
+        drainBeacons();
+        Integer slot = slots.get(ip);
+        if (slot == null) {
+            return List.of();
+        }
+        int count = historyCount[slot];
+        List<DevicePresenceTransition> result = new ArrayList<>(count);
+        int start = historyHead[slot] - count + historySize;
+        for (int i = 0; i < count; i++) {
+            long value = history[slot * historySize + (start + i) % historySize];
+            result.add(new DevicePresenceTransition(value >>> 1, (value & 1) == 1));
+        }
+        return result;
+    }
+
+    private void applyBeacon(String ip, long nanos, long millis) {
+        int slot = slot(ip);
+        // slot may be created on drain, after beacon was received
+        firstSeen[slot] = Math.min(firstSeen[slot], millis);
+        lastSeen[slot] = Math.max(lastSeen[slot], millis);
+        if (beacons[slot]++ > 0) {
+            long interval = (nanos - lastBeaconNanos[slot]) / 1_000_000;
+            long count = beacons[slot] - 1;
+            double delta = interval - intervalMean[slot];
+            intervalMean[slot] += delta / count;
+            intervalM2[slot] += delta * (interval - intervalMean[slot]);
+            intervalMax[slot] = Math.max(intervalMax[slot], interval);
+        }
+        lastBeaconNanos[slot] = nanos;
+    }
+
+    private DevicePresenceStats stats(int slot, long now) {
+        long tracked = now - firstSeen[slot];
+        long presentTime = presentMillis[slot] + (present[slot] ? now - presentSince[slot] : 0);
+        long intervals = beacons[slot] - 1;
+        return DevicePresenceStats.builder()
+                .ip(ips[slot])
+                .name(names[slot])
+                .present(present[slot])
+                .firstSeen(firstSeen[slot])
+                .lastSeen(lastSeen[slot])
+                .uptimePercent(tracked <= 0 ? 100 : Math.round(presentTime * 10000.0 / tracked) / 100.0)
+                .flaps(flaps[slot])
+                .beacons(beacons[slot])
+                .beaconIntervalMean(intervals > 0 ? Math.round(intervalMean[slot]) : 0)
+                .beaconIntervalStdDev(intervals > 1 ? Math.round(Math.sqrt(intervalM2[slot] / (intervals - 1))) : 0)
+                .beaconIntervalMax(intervalMax[slot])
+                .build();
+    }
+
+    private void addTransition(int slot, long time, boolean found) {
+        history[slot * historySize + historyHead[slot]] = time << 1 | (found ? 1 : 0);
+        historyHead[slot] = (historyHead[slot] + 1) % historySize;
+        historyCount[slot] = Math.min(historySize, historyCount[slot] + 1);
+    }
+
+    private int slot(String ip) {
+        Integer existing = slots.get(ip);
+        if (existing != null) {
+            return existing;
+        }
+
+        int slot;
+        if (slots.size() < maxDevices) {
+            slot = slots.size();
+        } else {
+            slot = leastRecentlySeen();
+            log.debug("Presence history is full, forgetting {}", ips[slot]);
+            slots.remove(ips[slot]);
+        }
+        slots.put(ip, slot);
+
+        long now = System.currentTimeMillis();
+        ips[slot] = ip;
+        names[slot] = null;
+        present[slot] = false;
+        firstSeen[slot] = now;
+        lastSeen[slot] = now;
+        presentSince[slot] = 0;
+        presentMillis[slot] = 0;
+        flaps[slot] = 0;
+        beacons[slot] = 0;
+        lastBeaconNanos[slot] = 0;
+        intervalMean[slot] = 0;
+        intervalM2[slot] = 0;
+        intervalMax[slot] = 0;
+        historyHead[slot] = 0;
+        historyCount[slot] = 0;
+        return slot;
+    }
+
+    // prefers devices which are not present
+    private int leastRecentlySeen() {
+        int result = 0;
+        for (int slot = 1; slot < maxDevices; slot++) {
+            if (present[slot] != present[result] ? !present[slot] : lastSeen[slot] < lastSeen[result]) {
+                result = slot;
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,198 @@
+package ru.pobopo.smartthing.gateway.service.device;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.stereotype.Component;
+import ru.pobopo.smartthing.model.SavedDeviceInfo;
+import ru.pobopo.smartthing.model.device.DeviceInfo;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory index of found (by search) and saved devices by ip and name.
+ * Updated incrementally by device search and saved devices service, lookups are map reads.
+ * Version is incremented on every change, so clients can cheaply check if devices changed.
+ */
+@Slf4j
+@Component
+public class DeviceRegistry {
+    private final Index<DeviceInfo> found = new Index<>();
+    private final Index<SavedDeviceInfo> saved = new Index<>();
+    private final AtomicLong version = new AtomicLong();
+
+    // Rebuilt on read after changes
+    private volatile Snapshot snapshot = new Snapshot(-1, List.of(), List.of(), List.of());
+
+    public long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * Device by ip or name, found devices first
+     */
+    public DeviceInfo getDevice(String device) {
+        if (StringUtils.isBlank(device)) {
+            return null;
+        }
+        DeviceInfo info = found.get(device);
+        return info != null ? info : saved.get(device);
+    }
+
+    public DeviceInfo getDeviceByIp(String ip) {
+        if (StringUtils.isBlank(ip)) {
+            return null;
+        }
+        DeviceInfo info = found.byIp.get(ip);
+        return info != null ? info : saved.byIp.get(ip);
+    }
+
+    public SavedDeviceInfo getSavedDevice(String ip) {
+        return StringUtils.isBlank(ip) ? null : saved.byIp.get(ip);
+    }
+
+    public List<DeviceInfo> getFoundDevices() {
+        return snapshot().found;
+    }
+
+    public List<SavedDeviceInfo> getSavedDevices() {
+        return snapshot().saved;
+    }
+
+    /**
+     * Found and saved devices without duplicates by ip, found device info wins
+     */
+    public List<DeviceInfo> getKnownDevices() {
+        return snapshot().known;
+    }
+
+    /**
+     * @return true if device is new or its info changed
+     */
+    public boolean putFound(DeviceInfo info) {
+        if (found.put(info)) {
+            version.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    public void removeFound(DeviceInfo info) {
+        if (found.remove(info)) {
+            version.incrementAndGet();
+        }
+    }
+
+    public void putSaved(SavedDeviceInfo info) {
+        if (saved.put(info)) {
+            version.incrementAndGet();
+        }
+    }
+
+    public void removeSaved(SavedDeviceInfo info) {
+        if (saved.remove(info)) {
+            version.incrementAndGet();
+        }
+    }
+
+    private Snapshot snapshot() {
+        Snapshot current = snapshot;
+        long currentVersion = version.get();
+        if (current.version == currentVersion) {
+            return current;
+        }
+        synchronized (this) {
+            current = snapshot;
+            if (current.version == currentVersion) {
+                return current;
+            }
+            List<DeviceInfo> foundDevices = List.copyOf(found.byIp.values());
+            List<SavedDeviceInfo> savedDevices = List.copyOf(saved.byIp.values());
+            List<DeviceInfo> known = new ArrayList<>(foundDevices);
+            for (SavedDeviceInfo info : savedDevices) {
+                if (!found.byIp.containsKey(info.getIp())) {
+                    known.add(info);
+                }
+            }
+            // version read before copying, so a concurrent change only forces one more rebuild
+            current = new Snapshot(currentVersion, foundDevices, savedDevices, List.copyOf(known));
+            snapshot = current;
+            return current;
+        }
+    }
+
+    static boolean sameInfo(DeviceInfo a, DeviceInfo b) {
+        return Objects.equals(a.getIp(), b.getIp())
+                && Objects.equals(a.getName(), b.getName())
+                && Objects.equals(a.getType(), b.getType())
+                && Objects.equals(a.getBoard(), b.getBoard())
+                && Objects.equals(a.getStVersion(), b.getStVersion())
+                && Objects.equals(a.getVersion(), b.getVersion())
+                && Objects.equals(a.getNetworkInterface(), b.getNetworkInterface());
+    }
+
+    private static class Index<T extends DeviceInfo> {
+        private final Map<String, T> byIp = new ConcurrentHashMap<>();
+        private final Map<String, T> byName = new ConcurrentHashMap<>();
+
+        private T get(String device) {
+            T info = byIp.get(device);
+            return info != null ? info : byName.get(device);
+        }
+
+        // returns true if index changed
+        private synchronized boolean put(T info) {
+            if (info == null || StringUtils.isBlank(info.getIp())) {
+                return false;
+            }
+            T old = byIp.put(info.getIp(), info);
+            if (old != null && !Objects.equals(old.getName(), info.getName())) {
+                removeName(old);
+            }
+            if (info.getName() != null) {
+                byName.put(info.getName(), info);
+            }
+            return old == null || !sameInfo(old, info);
+        }
+
+        private synchronized boolean remove(T info) {
+            if (info == null || StringUtils.isBlank(info.getIp())) {
+                return false;
+            }
+            T old = byIp.remove(info.getIp());
+            if (old == null) {
+                return false;
+            }
+            removeName(old);
+            return true;
+        }
+
+        private void removeName(T old) {
+            if (old.getName() == null || !byName.remove(old.getName(), old)) {
+                return;
+            }
+            // another device can have the same name
+            for (T other : byIp.values()) {
+                if (old.getName().equals(other.getName())) {
+                    byName.put(other.getName(), other);
+                    return;
+                }
+            }
+        }
+    }
+
+    private static class Snapshot {
+        private final long version;
+        private final List<DeviceInfo> found;
+        private final List<SavedDeviceInfo> saved;
+        private final List<DeviceInfo> known;
+
+        private Snapshot(long version, List<DeviceInfo> found, List<SavedDeviceInfo> saved, List<DeviceInfo> known) {
+            this.version = version;
+            this.found = found;
+            this.saved = saved;
+            this.known = known;
+        }
+    }
+}
@@ -1,67 +1,71 @@
 package ru.pobopo.smartthing.gateway.service.device;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.RequiredArgsConstructor;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
-import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
-import ru.pobopo.smartthing.gateway.cache.CacheItem;
+import ru.pobopo.smartthing.gateway.cache.SingleFlight;
 import ru.pobopo.smartthing.gateway.exception.BadRequestException;
 import ru.pobopo.smartthing.gateway.exception.DeviceApiException;
+import ru.pobopo.smartthing.gateway.model.cache.SingleFlightStats;
 import ru.pobopo.smartthing.gateway.model.cloud.CloudIdentity;
 import ru.pobopo.smartthing.gateway.model.device.DeviceApiMethod;
 import ru.pobopo.smartthing.gateway.service.cloud.CloudApiService;
-import ru.pobopo.smartthing.gateway.service.device.api.DeviceApi;
+import ru.pobopo.smartthing.gateway.service.device.api.DeviceApiCommand;
+import ru.pobopo.smartthing.gateway.service.device.api.DeviceApiRegistry;
 import ru.pobopo.smartthing.model.device.DeviceInfo;
 import ru.pobopo.smartthing.model.stomp.DeviceRequest;
 
-import java.lang.reflect.Method;
-import java.lang.reflect.Modifier;
-import java.lang.reflect.Parameter;
-import java.time.LocalDateTime;
-import java.time.temporal.ChronoUnit;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 @Slf4j
 @Service
 @RequiredArgsConstructor
 public class DeviceRequestService {
-    private final List<DeviceApi> apis;
-    private final ObjectMapper objectMapper;
+    private final DeviceApiRegistry apiRegistry;
     private final CloudApiService cloudService;
     private final DeviceService deviceService;
+    private final DeviceApiCacheService cacheService;
+    private final DeviceSensorsPoller sensorsPoller;
 
-    @Value("${device.api.cache.enabled:true}")
-    private boolean cacheEnabled;
-    @Value("${device.api.cache.ttl:1500}")
-    private int cacheTtl;
+    private final SingleFlight<DeviceRequest, ResponseEntity<byte[]>> requestsInFlight = new SingleFlight<>();
 
-    private final Map<DeviceRequest, CacheItem<ResponseEntity<String>>> cache = new ConcurrentHashMap<>();
+    @SneakyThrows
+    public ResponseEntity<byte[]> execute(DeviceRequest request) {
+        try {
+            return executeAsync(request).join();
+        } catch (CompletionException exception) {
+            throw exception.getCause();
+        }
+    }
 
-    public ResponseEntity<String> execute(DeviceRequest request) {
+    public CompletableFuture<ResponseEntity<byte[]>> executeAsync(DeviceRequest request) {
         Objects.requireNonNull(request, "Incoming request can't be null!");
         log.info("Executing device request: {}", request);
-        ResponseEntity<String> fromCache = getFromCache(request);
+        ResponseEntity<byte[]> fromCache = cacheService.get(request);
         if (fromCache != null) {
             log.info("Got request {} result from cache: {}", request, fromCache);
-            return fromCache;
+            return CompletableFuture.completedFuture(fromCache);
         }
 
-        ResponseEntity<String> result = sendRequest(request);
-        if (cacheEnabled) {
-            log.info("Saving request {} result {} in cache", request, result);
-            cache.put(request, new CacheItem<>(result, LocalDateTime.now()));
+        if (cacheService.isMutating(request)) {
+            return sendAndCache(request);
         }
-        return result;
+        // concurrent identical reads share one device call
+        return requestsInFlight.execute(request, () -> sendAndCache(request));
+    }
+
+    public SingleFlightStats getCoalescingStats() {
+        return requestsInFlight.getStats();
     }
 
-    public ResponseEntity<String> execute(String target, String command, String params) throws BadRequestException {
+    public CompletableFuture<ResponseEntity<byte[]>> executeAsync(String target, String command, String params) throws BadRequestException {
         if (StringUtils.isBlank(target)) {
             throw new BadRequestException("Target can't be blank");
         }
@@ -92,16 +96,24 @@ public class DeviceRequestService {
             requestBuilder.params(paramsMap);
         }
 
-        return execute(requestBuilder.build());
+        return executeAsync(requestBuilder.build());
     }
 
-    private ResponseEntity<String> sendRequest(DeviceRequest request) {
+    private CompletableFuture<ResponseEntity<byte[]>> sendAndCache(DeviceRequest request) {
+        long generation = cacheService.getGeneration(request);
+        return sendRequest(request).thenApply((result) -> {
+            cacheService.put(request, result, generation);
+            return result;
+        });
+    }
+
+    private CompletableFuture<ResponseEntity<byte[]>> sendRequest(DeviceRequest request) {
         if (StringUtils.isBlank(request.getGatewayName()) || isSameGateway(request.getGatewayName())) {
             log.info("Executing local request");
             return sendLocalRequest(request);
         }
         log.info("Sending request to gateway name={}", request.getGatewayName());
-        return sendRemoteRequest(request);
+        return CompletableFuture.completedFuture(sendRemoteRequest(request));
     }
 
     public List<DeviceApiMethod> getApiMethods(DeviceInfo deviceInfo) {
@@ -110,84 +122,54 @@ public class DeviceRequestService {
             throw new DeviceApiException("Unknown device!");
         }
 
-        Optional<DeviceApi> optionalApi = apis.stream().filter((api) -> api.accept(foundDevice.get())).findFirst();
-        if (optionalApi.isEmpty()) {
-            throw new DeviceApiException("Api not found for this target");
-        }
-
-        Method[] methods = optionalApi.get().getClass().getMethods();
-        return Arrays.stream(methods)
-                .filter((method) -> Modifier.isPublic(method.getModifiers())
-                        && method.getReturnType().equals(ResponseEntity.class))
-                .map(DeviceApiMethod::fromMethod)
-                .toList();
+        return apiRegistry.getMethods(foundDevice.get());
     }
 
-    private ResponseEntity<String> sendLocalRequest(DeviceRequest request) {
+    private CompletableFuture<ResponseEntity<byte[]>> sendLocalRequest(DeviceRequest request) {
         Optional<DeviceInfo> deviceInfo = deviceService.findDevice(request.getDevice());
         if (deviceInfo.isEmpty()) {
             throw new DeviceApiException("Unknown device!");
         }
 
-        Optional<DeviceApi> optionalApi = apis.stream().filter((api) -> api.accept(deviceInfo.get())).findFirst();
-        if (optionalApi.isEmpty()) {
-            throw new DeviceApiException("Api not found for this target");
+        ResponseEntity<byte[]> snapshot = sensorsPoller.getSnapshot(deviceInfo.get().getIp(), request.getCommand());
+        if (snapshot != null) {
+            log.info("Got request {} result from sensors snapshot", request);
+            return CompletableFuture.completedFuture(toClientResponse(snapshot));
         }
 
-        DeviceApi api = optionalApi.get();
-        Method[] methods = api.getClass().getMethods();
-        Method targetMethod = Arrays.stream(methods)
-                .filter((method) ->
-                        method.getName().equals(request.getCommand()) &&
-                                method.getReturnType().equals(ResponseEntity.class)
-                )
-                .findFirst()
-                .orElseThrow(() -> new DeviceApiException(String.format(
-                        "There is no such method %s in class %s",
-                        request.getCommand(),
-                        api.getClass().getName()
-                )));
+        DeviceApiCommand command = apiRegistry.getCommand(deviceInfo.get(), request.getCommand());
+        log.info("Calling api: method {} (params={})", command.getName(), request.getParams());
+        CompletableFuture<ResponseEntity<byte[]>> call;
         try {
-            log.info(
-                    "Calling api: method {} in {} (params={})",
-                    targetMethod.getName(),
-                    api.getClass().getName(),
-                    request.getParams()
-            );
-
-            List<Object> args = new ArrayList<>();
-            for (Parameter parameter : targetMethod.getParameters()) {
-                if (parameter.getType().equals(DeviceInfo.class)) {
-                    args.add(deviceInfo.get());
-                } else if (parameter.getType().equals(DeviceRequest.class)) {
-                    args.add(request);
-                } else {
-                    Object value = request.getParams().getOrDefault(parameter.getName(), null);
-                    if (value == null) {
-                        args.add(null);
-                        continue;
-                    }
-                    args.add(objectMapper.convertValue(value, parameter.getType()));
-                }
-            }
-
-            ResponseEntity<String> result = (ResponseEntity<String>) targetMethod.invoke(api, args.toArray());
-            List<String> contentType = result.getHeaders().get("content-type");
-            HttpHeaders requiredHeaders = new HttpHeaders();
-            requiredHeaders.addAll("content-type", contentType == null ? List.of("text/plain") : contentType);
-
-            return new ResponseEntity<>(result.getBody(), requiredHeaders, result.getStatusCode());
-        } catch (Exception e) {
+            call = command.invoke(deviceInfo.get(), request);
+        } catch (Throwable e) {
             log.error("Failed to call device api", e);
             throw new DeviceApiException(e.getMessage());
         }
+
+        return call.handle((result, throwable) -> {
+            if (throwable != null) {
+                Throwable cause = throwable instanceof CompletionException ? throwable.getCause() : throwable;
+                log.error("Failed to call device api", cause);
+                throw new DeviceApiException(cause.getMessage());
+            }
+            return toClientResponse(result);
+        });
+    }
+
+    private ResponseEntity<byte[]> toClientResponse(ResponseEntity<byte[]> result) {
+        List<String> contentType = result.getHeaders().get("content-type");
+        HttpHeaders requiredHeaders = new HttpHeaders();
+        requiredHeaders.addAll("content-type", contentType == null ? List.of("text/plain") : contentType);
+
+        return new ResponseEntity<>(result.getBody(), requiredHeaders, result.getStatusCode());
     }
 
     @SneakyThrows
-    private ResponseEntity<String> sendRemoteRequest(DeviceRequest request) {
+    private ResponseEntity<byte[]> sendRemoteRequest(DeviceRequest request) {
         //todo handle gateway not found exception
         // add internal exception codes?
-        ResponseEntity<String> response = cloudService.sendDeviceRequest(request);
+        ResponseEntity<byte[]> response = cloudService.sendDeviceRequest(request);
         Objects.requireNonNull(response);
         if (HttpStatus.FORBIDDEN.equals(response.getStatusCode())) {
             throw new BadRequestException("Gateway with name=" + request.getGatewayName() + " not found!");
@@ -195,19 +177,6 @@ public class DeviceRequestService {
         return response;
     }
 
-    private ResponseEntity<String> getFromCache(DeviceRequest request) {
-        if (!cacheEnabled) {
-            return null;
-        }
-
-        CacheItem<ResponseEntity<String>> cacheItem = cache.get(request);
-        if (cacheItem == null || cacheItem.getAddedTime().until(LocalDateTime.now(), ChronoUnit.MILLIS) > cacheTtl) {
-            cache.remove(request);
-            return null;
-        }
-        return cacheItem.getItem();
-    }
-
     private boolean isSameGateway(String gatewayId) {
         CloudIdentity cloudIdentity = cloudService.getCloudIdentity();
         if (cloudIdentity == null || cloudIdentity.getGateway() == null) {
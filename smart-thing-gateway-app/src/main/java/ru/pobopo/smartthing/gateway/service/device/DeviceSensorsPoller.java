@@ -0,0 +1,290 @@
+package ru.pobopo.smartthing.gateway.service.device;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.ResponseEntity;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import ru.pobopo.smartthing.gateway.model.device.DeviceSensorsDelta;
+import ru.pobopo.smartthing.gateway.model.device.DeviceSensorsSnapshot;
+import ru.pobopo.smartthing.gateway.service.device.api.DeviceApiRegistry;
+import ru.pobopo.smartthing.model.device.DeviceInfo;
+import ru.pobopo.smartthing.model.stomp.DeviceRequest;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static ru.pobopo.smartthing.gateway.config.StompMessagingConfig.DEVICES_TOPIC;
+
+/**
+ * Polls sensors and metrics of all known devices and keeps the latest response per device,
+ * so api reads don't go to device every time.
+ * Poll interval is adaptive: minimal after sensors change, doubles while nothing changes or device fails,
+ * and is capped while somebody reads the device sensors through api.
+ * Changes are pushed to {@link #SENSORS_TOPIC}.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class DeviceSensorsPoller {
+    public static final String SENSORS_TOPIC = DEVICES_TOPIC + "/sensors";
+    public static final String SENSORS_COMMAND = "getSensors";
+    public static final String METRICS_COMMAND = "getMetrics";
+
+    private final DeviceService deviceService;
+    private final DeviceApiRegistry apiRegistry;
+    private final SimpMessagingTemplate messagingTemplate;
+    private final ObjectMapper objectMapper;
+
+    @Value("${device.sensors.poll.enabled:false}")
+    private boolean enabled;
+    @Value("${device.sensors.poll.interval.min:1000}")
+    private long minInterval;
+    @Value("${device.sensors.poll.interval.max:30000}")
+    private long maxInterval;
+    @Value("${device.sensors.poll.interval.watched:2000}")
+    private long watchedInterval;
+    @Value("${device.sensors.poll.watch-time:60000}")
+    private long watchTime;
+    @Value("${device.sensors.snapshot.max-age:5000}")
+    private long maxAge;
+
+    private final Map<String, PollState> states = new ConcurrentHashMap<>();
+    private long devicesVersion = -1;
+
+    @Scheduled(fixedDelayString = "${device.sensors.poll.tick:250}")
+    public void tick() {
+        if (!enabled) {
+            return;
+        }
+        long now = System.nanoTime();
+        long version = deviceService.getDevicesVersion();
+        Collection<DeviceInfo> devices = deviceService.getKnownDevices();
+        for (DeviceInfo device : devices) {
+            PollState state = states.computeIfAbsent(device.getIp(), (ip) -> new PollState(ip, minInterval));
+            state.device = device;
+            if (now - state.nextPollAt >= 0 && state.polling.compareAndSet(false, true)) {
+                poll(state);
+            }
+        }
+        if (version != devicesVersion) {
+            Set<String> known = new HashSet<>();
+            devices.forEach((device) -> known.add(device.getIp()));
+            states.keySet().retainAll(known);
+            devicesVersion = version;
+        }
+    }
+
+    /**
+     * Latest device response for sensors or metrics command, if it's fresh enough.
+     * Every call marks device as watched, so it's polled more often.
+     */
+    public ResponseEntity<byte[]> getSnapshot(String ip, String command) {
+        if (!enabled || StringUtils.isBlank(ip)) {
+            return null;
+        }
+        boolean sensors = SENSORS_COMMAND.equals(command);
+        if (!sensors && !METRICS_COMMAND.equals(command)) {
+            return null;
+        }
+        PollState state = states.get(ip);
+        if (state == null) {
+            return null;
+        }
+
+        long now = System.nanoTime();
+        synchronized (state) {
+            state.lastReadAt = now;
+            long watchedPollAt = now + TimeUnit.MILLISECONDS.toNanos(watchedInterval);
+            if (state.nextPollAt - watchedPollAt > 0) {
+                state.nextPollAt = watchedPollAt;
+            }
+            ResponseEntity<byte[]> response = sensors ? state.sensorsResponse : state.metricsResponse;
+            long updatedAt = sensors ? state.sensorsUpdatedAt : state.metricsUpdatedAt;
+            if (response == null || now - updatedAt > TimeUnit.MILLISECONDS.toNanos(maxAge)) {
+                return null;
+            }
+            return response;
+        }
+    }
+
+    public List<DeviceSensorsSnapshot> getSnapshots() {
+        List<DeviceSensorsSnapshot> snapshots = new ArrayList<>(states.size());
+        for (PollState state : states.values()) {
+            synchronized (state) {
+                snapshots.add(DeviceSensorsSnapshot.builder()
+                        .ip(state.ip)
+                        .name(state.device == null ? null : state.device.getName())
+                        .sensors(state.sensors)
+                        .metrics(state.metrics)
+                        .sensorsUpdatedAt(state.sensorsTimestamp)
+                        .metricsUpdatedAt(state.metricsTimestamp)
+                        .pollInterval(state.interval)
+                        .failures(state.failures)
+                        .build());
+            }
+        }
+        return snapshots;
+    }
+
+    private void poll(PollState state) {
+        DeviceInfo device = state.device;
+        CompletableFuture<ResponseEntity<byte[]>> sensors = fetch(device, SENSORS_COMMAND);
+        CompletableFuture<ResponseEntity<byte[]>> metrics = fetch(device, METRICS_COMMAND);
+        CompletableFuture.allOf(sensors, metrics).whenComplete((ignored, throwable) -> {
+            try {
+                update(state, sensors.join(), metrics.join());
+            } catch (Exception exception) {
+                log.error("Failed to update sensors snapshot of {}", state.ip, exception);
+            } finally {
+                state.polling.set(false);
+            }
+        });
+    }
+
+    private CompletableFuture<ResponseEntity<byte[]>> fetch(DeviceInfo device, String command) {
+        try {
+            return apiRegistry.getCommand(device, command)
+                    .invoke(device, DeviceRequest.builder().device(device.getIp()).command(command).build())
+                    .exceptionally((throwable) -> {
+                        log.debug("Failed to poll {} of {}: {}", command, device.getIp(), throwable.getMessage());
+                        return null;
+                    });
+        } catch (Throwable throwable) {
+            log.debug("Failed to poll {} of {}: {}", command, device.getIp(), throwable.getMessage());
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    private void update(PollState state, ResponseEntity<byte[]> sensorsResponse, ResponseEntity<byte[]> metricsResponse) {
+        JsonNode sensors = parse(sensorsResponse);
+        JsonNode metrics = parse(metricsResponse);
+        long now = System.nanoTime();
+        long timestamp = System.currentTimeMillis();
+
+        JsonNode sensorsDelta = null;
+        JsonNode metricsDelta = null;
+        List<String> removed = List.of();
+        synchronized (state) {
+            boolean sensorsChanged = false;
+            if (sensors != null) {
+                sensorsDelta = diff(state.sensors, sensors);
+                removed = removedFields(state.sensors, sensors);
+                sensorsChanged = sensorsDelta != null || !removed.isEmpty();
+                state.sensors = sensors;
+                state.sensorsResponse = sensorsResponse;
+                state.sensorsUpdatedAt = now;
+                state.sensorsTimestamp = timestamp;
+            }
+            if (metrics != null) {
+                metricsDelta = diff(state.metrics, metrics);
+                state.metrics = metrics;
+                state.metricsResponse = metricsResponse;
+                state.metricsUpdatedAt = now;
+                state.metricsTimestamp = timestamp;
+            }
+
+            if (sensors == null && metrics == null) {
+                state.failures++;
+                state.interval = Math.min(maxInterval, state.interval * 2);
+            } else {
+                state.failures = 0;
+                state.interval = sensorsChanged ? minInterval : Math.min(maxInterval, state.interval * 2);
+            }
+            long interval = now - state.lastReadAt < TimeUnit.MILLISECONDS.toNanos(watchTime)
+                    ? Math.min(state.interval, watchedInterval)
+                    : state.interval;
+            state.nextPollAt = now + TimeUnit.MILLISECONDS.toNanos(interval);
+        }
+
+        if (sensorsDelta != null || metricsDelta != null || !removed.isEmpty()) {
+            DeviceInfo device = state.device;
+            messagingTemplate.convertAndSend(SENSORS_TOPIC, DeviceSensorsDelta.builder()
+                    .ip(state.ip)
+                    .name(device == null ? null : device.getName())
+                    .sensors(sensorsDelta)
+                    .metrics(metricsDelta)
+                    .removedSensors(removed.isEmpty() ? null : removed)
+                    .timestamp(timestamp)
+                    .build());
+        }
+    }
+
+    private JsonNode parse(ResponseEntity<byte[]> response) {
+        if (response == null || !response.getStatusCode().is2xxSuccessful()
+                || response.getBody() == null || response.getBody().length == 0) {
+            return null;
+        }
+        try {
+            return objectMapper.readTree(response.getBody());
+        } catch (IOException exception) {
+            log.debug("Device response is not a json: {}", exception.getMessage());
+            return null;
+        }
+    }
+
+    // Changed and added top level fields, whole value if it's not an object
+    private static JsonNode diff(JsonNode old, JsonNode current) {
+        if (!(old instanceof ObjectNode oldObject) || !(current instanceof ObjectNode currentObject)) {
+            return current.equals(old) ? null : current;
+        }
+        ObjectNode delta = currentObject.objectNode();
+        Iterator<Map.Entry<String, JsonNode>> fields = currentObject.fields();
+        while (fields.hasNext()) {
+            Map.Entry<String, JsonNode> field = fields.next();
+            if (!field.getValue().equals(oldObject.get(field.getKey()))) {
+                delta.set(field.getKey(), field.getValue());
+            }
+        }
+        return delta.isEmpty() ? null : delta;
+    }
+
+    private static List<String> removedFields(JsonNode old, JsonNode current) {
+        if (!(old instanceof ObjectNode) || !(current instanceof ObjectNode)) {
+            return List.of();
+        }
+        List<String> removed = new ArrayList<>();
+        old.fieldNames().forEachRemaining((name) -> {
+            if (!current.has(name)) {
+                removed.add(name);
+            }
+        });
+        return removed;
+    }
+
+    private static class PollState {
+        private final String ip;
+        private final AtomicBoolean polling = new AtomicBoolean(false);
+        private volatile DeviceInfo device;
+
+        private long interval;
+        private volatile long nextPollAt = System.nanoTime();
+        private long lastReadAt = System.nanoTime() - TimeUnit.DAYS.toNanos(1);
+        private int failures;
+
+        private JsonNode sensors;
+        private JsonNode metrics;
+        private ResponseEntity<byte[]> sensorsResponse;
+        private ResponseEntity<byte[]> metricsResponse;
+        // nanoTime for freshness checks, epoch millis for clients
+        private long sensorsUpdatedAt;
+        private long metricsUpdatedAt;
+        private long sensorsTimestamp;
+        private long metricsTimestamp;
+
+        private PollState(String ip, long interval) {
+            this.ip = ip;
+            this.interval = interval;
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package ru.pobopo.smartthing.gateway.service.device;
+
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import ru.pobopo.smartthing.gateway.model.device.DeviceSweepStats;
+import ru.pobopo.smartthing.gateway.service.device.api.DeviceInfoProbe;
+import ru.pobopo.smartthing.model.device.DeviceInfo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Active discovery for networks, where multicast beacons don't pass.
+ * Sweeps configured CIDR ranges by requesting device info from every host, a few hosts every tick,
+ * with limited number of requests in flight and probes per second.
+ * Found devices are probed again more often than search cache ttl, so they stay found
+ * while they respond and are lost through the same pipeline as multicast devices.
+ * These keepalive probes go to known devices only, so they are limited by concurrency but not by sweep rate.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class DeviceSweepDiscovery {
+    private static final int MIN_PREFIX = 16;
+    private static final int MAX_KEEPALIVE_FAILURES = 3;
+
+    private final DeviceInfoProbe probe;
+    private final DevicesSearchService searchService;
+
+    @Value("${device.discovery.sweep.enabled:false}")
+    private boolean enabled;
+    @Value("${device.discovery.sweep.ranges:}")
+    private List<String> rangesConfig;
+    @Value("${device.discovery.sweep.concurrency:64}")
+    private int concurrency;
+    @Value("${device.discovery.sweep.rate:200}")
+    private int rate;
+    @Value("${device.discovery.sweep.interval:60000}")
+    private long interval;
+    @Value("${device.discovery.sweep.keepalive:2000}")
+    private long keepalive;
+
+    private final List<Range> ranges = new ArrayList<>();
+    private final Map<String, FoundHost> found = new ConcurrentHashMap<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private long hosts;
+
+    // guarded by tick
+    private long cursor;
+    private long sweepStartedAt;
+    private long nextSweepAt = System.nanoTime();
+    private long lastTick = System.nanoTime();
+    private double tokens;
+
+    private volatile long progress;
+    private volatile long sweeps;
+    private volatile long probes;
+    private volatile long lastSweepMillis;
+
+    @PostConstruct
+    public void init() {
+        for (String config : rangesConfig) {
+            if (StringUtils.isBlank(config)) {
+                continue;
+            }
+            try {
+                Range range = Range.parse(config.trim());
+                ranges.add(range);
+                hosts += range.size;
+            } catch (IllegalArgumentException exception) {
+                log.error("Bad sweep range {}: {}", config, exception.getMessage());
+            }
+        }
+        if (enabled) {
+            log.info("Sweep discovery enabled for {} ({} hosts)", ranges, hosts);
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${device.discovery.sweep.tick:100}")
+    public synchronized void tick() {
+        if (!enabled || ranges.isEmpty()) {
+            return;
+        }
+        long now = System.nanoTime();
+        // short burst allowance, so delayed tick doesn't flood the network
+        tokens = Math.min(Math.max(1, rate / 10.0), tokens + rate * (now - lastTick) / 1e9);
+        lastTick = now;
+
+        long keepaliveNanos = TimeUnit.MILLISECONDS.toNanos(keepalive);
+        for (Map.Entry<String, FoundHost> entry : found.entrySet()) {
+            FoundHost host = entry.getValue();
+            if (inFlight.get() >= concurrency) {
+                return;
+            }
+            if (!host.probing && now - host.probedAt >= keepaliveNanos) {
+                host.probing = true;
+                host.probedAt = now;
+                launch(entry.getKey(), host);
+            }
+        }
+
+        if (cursor >= hosts) {
+            if (now - nextSweepAt < 0) {
+                return;
+            }
+            cursor = 0;
+        }
+        if (cursor == 0) {
+            sweepStartedAt = now;
+        }
+        while (cursor < hosts && canProbe()) {
+            String ip = address(cursor++);
+            // already found by beacons or by sweep
+            if (!found.containsKey(ip) && !searchService.isFound(ip)) {
+                tokens--;
+                launch(ip, null);
+            }
+        }
+        progress = cursor;
+        if (cursor >= hosts) {
+            sweeps++;
+            lastSweepMillis = TimeUnit.NANOSECONDS.toMillis(now - sweepStartedAt);
+            nextSweepAt = now + TimeUnit.MILLISECONDS.toNanos(interval);
+            log.debug("Sweep finished in {}ms", lastSweepMillis);
+        }
+    }
+
+    public DeviceSweepStats getStats() {
+        return DeviceSweepStats.builder()
+                .enabled(enabled)
+                .ranges(ranges.stream().map(Range::toString).toList())
+                .hosts(hosts)
+                .progress(progress)
+                .sweeps(sweeps)
+                .lastSweepMillis(lastSweepMillis)
+                .probes(probes)
+                .inFlight(inFlight.get())
+                .foundDevices(found.size())
+                .build();
+    }
+
+    private boolean canProbe() {
+        return tokens >= 1 && inFlight.get() < concurrency;
+    }
+
+    private void launch(String ip, FoundHost host) {
+        probes++;
+        inFlight.incrementAndGet();
+        probe.probe(ip).whenComplete((info, throwable) -> {
+            inFlight.decrementAndGet();
+            if (info != null) {
+                onFound(ip, info, host);
+            } else if (host != null) {
+                host.probing = false;
+                if (++host.failures >= MAX_KEEPALIVE_FAILURES) {
+                    log.info("Swept device {} stopped responding", ip);
+                    found.remove(ip, host);
+                }
+            }
+        });
+    }
+
+    private void onFound(String ip, DeviceInfo info, FoundHost host) {
+        if (host == null) {
+            log.info("Sweep found device {}", info);
+            FoundHost created = new FoundHost();
+            created.probedAt = System.nanoTime();
+            found.putIfAbsent(ip, created);
+        } else {
+            host.failures = 0;
+            host.probing = false;
+        }
+        searchService.putFoundDevice(info);
+    }
+
+    private String address(long index) {
+        for (Range range : ranges) {
+            if (index < range.size) {
+                int address = range.first + (int) index;
+                return (address >>> 24) + "." + ((address >>> 16) & 0xff) + "." + ((address >>> 8) & 0xff) + "." + (address & 0xff);
+            }
+            index -= range.size;
+        }
+        throw new IndexOutOfBoundsException();
+    }
+
+    private static class FoundHost {
+        private volatile long probedAt;
+        private volatile boolean probing;
+        private volatile int failures;
+    }
+
+    private static class Range {
+        private final String cidr;
+        private final int first;
+        private final long size;
+
+        private Range(String cidr, int first, long size) {
+            this.cidr = cidr;
+            this.first = first;
+            this.size = size;
+        }
+
+        private static Range parse(String cidr) {
+            String[] parts = cidr.split("/");
+            String[] octets = parts[0].split("\\.");
+            if (parts.length != 2 || octets.length != 4) {
+                throw new IllegalArgumentException("expected ipv4 cidr like 192.168.1.0/24");
+            }
+            int address = 0;
+            for (String octet : octets) {
+                int value = Integer.parseInt(octet);
+                if (value < 0 || value > 255) {
+                    throw new IllegalArgumentException("bad address " + parts[0]);
+                }
+                address = (address << 8) | value;
+            }
+            int prefix = Integer.parseInt(parts[1]);
+            if (prefix < MIN_PREFIX || prefix > 32) {
+                throw new IllegalArgumentException("prefix should be between " + MIN_PREFIX + " and 32");
+            }
+            int mask = prefix == 32 ? -1 : ~(-1 >>> prefix);
+            long size = 1L << (32 - prefix);
+            int first = address & mask;
+            // skip network and broadcast addresses
+            if (prefix < 31) {
+                first++;
+                size -= 2;
+            }
+            return new Range(cidr, first, size);
+        }
+
+        @Override
+        public String toString() {
+            return cidr;
+        }
+    }
+}
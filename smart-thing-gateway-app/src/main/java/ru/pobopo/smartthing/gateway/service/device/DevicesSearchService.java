@@ -1,107 +1,392 @@
 package ru.pobopo.smartthing.gateway.service.device;
 
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.NonNull;
 import lombok.RequiredArgsConstructor;
+import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.messaging.simp.SimpMessagingTemplate;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 import ru.pobopo.smartthing.gateway.cache.ConcurrentSetCache;
-import ru.pobopo.smartthing.gateway.service.job.BackgroundJob;
+import ru.pobopo.smartthing.gateway.event.DeviceFoundEvent;
+import ru.pobopo.smartthing.gateway.event.DeviceLostEvent;
+import ru.pobopo.smartthing.gateway.model.device.DeviceSearchInterfaceStats;
+import ru.pobopo.smartthing.gateway.model.device.DevicesChangedMessage;
+import ru.pobopo.smartthing.gateway.model.device.FoundDevicesSnapshot;
+import ru.pobopo.smartthing.gateway.model.device.DeviceSearchStats;
+import ru.pobopo.smartthing.gateway.service.job.udp.UdpPacketHandler;
 import ru.pobopo.smartthing.model.device.DeviceInfo;
 
-import java.io.IOException;
-import java.net.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.time.temporal.ChronoUnit;
-import java.util.Set;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static ru.pobopo.smartthing.gateway.config.StompMessagingConfig.DEVICES_TOPIC;
 
 @Component
 @Slf4j
 @RequiredArgsConstructor
-public class DevicesSearchService implements BackgroundJob {
+public class DevicesSearchService implements UdpPacketHandler {
+    public static final String DEVICES_CHANGES_TOPIC = DEVICES_TOPIC + "/changes";
+    private static final String UNKNOWN_INTERFACE = "unknown";
+
     private final SimpMessagingTemplate messagingTemplate;
+    private final ApplicationEventPublisher eventPublisher;
+    private final DeviceRegistry registry;
+    private final DevicePresenceService presenceService;
+    private final ObjectMapper objectMapper;
 
     @Value("${device.search.group}")
     private String searchGroup;
     @Value("${device.search.port}")
     private int searchPort;
+    @Value("${device.search.beacon-interval:1000}")
+    private long beaconInterval;
+    @Value("${device.search.missed-beacons:5}")
+    private int missedBeacons;
+    @Value("${device.search.tick:500}")
+    private long tick;
 
     private final AtomicBoolean socketConnected = new AtomicBoolean(false);
-    private final ConcurrentSetCache<DeviceInfo> cache = new ConcurrentSetCache<>(5, ChronoUnit.SECONDS, this::onDeviceFound, this::onDeviceLost);
+    private ConcurrentSetCache<DeviceInfo> cache;
+    // changes since last flush by device ip, guarded by itself
+    private final Map<DeviceInfo, Change> changes = new LinkedHashMap<>();
+
+    // etag includes start time, so versions of different runs don't match
+    private final String snapshotPrefix = Long.toHexString(System.currentTimeMillis()) + "-";
+    private final AtomicLong foundVersion = new AtomicLong();
+    private volatile FoundDevicesSnapshot snapshot;
+    private final List<CompletableFuture<FoundDevicesSnapshot>> snapshotWaiters = new ArrayList<>();
+    // snapshot for waiters is built here, not on udp listeners thread
+    private final ExecutorService snapshotExecutor = Executors.newSingleThreadExecutor();
+    private final AtomicBoolean notifyScheduled = new AtomicBoolean(false);
+    private final DeviceBeaconDecoder beaconDecoder = new DeviceBeaconDecoder();
+    private final Map<String, InterfaceStats> interfaceStats = new ConcurrentHashMap<>();
+    private long lastTick = System.nanoTime();
+
+    @PostConstruct
+    public void init() {
+        // device is lost after several missed beacons in a row
+        cache = new ConcurrentSetCache<>(
+                Duration.ofMillis(beaconInterval * missedBeacons),
+                Duration.ofMillis(tick),
+                this::onDevicesFound,
+                this::onDevicesLost
+        );
+    }
+
+    @PreDestroy
+    public void stop() {
+        snapshotExecutor.shutdownNow();
+    }
 
     public boolean isSearchEnabled() {
         return socketConnected.get();
     }
 
+    public DeviceSearchStats getStats() {
+        Map<String, Integer> devices = new HashMap<>();
+        for (DeviceInfo info : cache.getValues()) {
+            devices.merge(interfaceKey(info.getNetworkInterface()), 1, Integer::sum);
+        }
+
+        DeviceSearchStats.DeviceSearchStatsBuilder builder = DeviceSearchStats.builder().foundDevices(cache.size());
+        long decoded = 0, duplicates = 0, invalid = 0;
+        List<DeviceSearchInterfaceStats> interfaces = new ArrayList<>();
+        for (Map.Entry<String, InterfaceStats> entry : interfaceStats.entrySet()) {
+            InterfaceStats stats = entry.getValue();
+            decoded += stats.decoded;
+            duplicates += stats.duplicates;
+            invalid += stats.invalid;
+            interfaces.add(DeviceSearchInterfaceStats.builder()
+                    .networkInterface(entry.getKey())
+                    .foundDevices(devices.getOrDefault(entry.getKey(), 0))
+                    .beacons(stats.beacons)
+                    .beaconsPerSecond(Math.round(stats.rate * 100) / 100.0)
+                    .decodedBeacons(stats.decoded)
+                    .duplicateBeacons(stats.duplicates)
+                    .invalidBeacons(stats.invalid)
+                    .build());
+        }
+        return builder
+                .decodedBeacons(decoded)
+                .duplicateBeacons(duplicates)
+                .invalidBeacons(invalid)
+                .droppedPresenceBeacons(presenceService.getDroppedBeacons())
+                .interfaces(interfaces)
+                .build();
+    }
+
     @NonNull
     public Set<DeviceInfo> getRecentFoundDevices() {
         return cache.getValues();
     }
 
-    @Scheduled(fixedDelayString = "5000")
-    public void cacheEvict() {
-        cache.evictItems();
+    /**
+     * Found devices snapshot, rebuilt only if devices changed since previous call
+     */
+    @SneakyThrows
+    public FoundDevicesSnapshot getFoundSnapshot() {
+        long version = foundVersion.get();
+        FoundDevicesSnapshot current = snapshot;
+        if (current != null && current.getVersion() == version) {
+            return current;
+        }
+        synchronized (foundVersion) {
+            current = snapshot;
+            if (current != null && current.getVersion() == version) {
+                return current;
+            }
+            // version read before copying, so a concurrent change only forces one more rebuild
+            List<DeviceInfo> devices = List.copyOf(cache.getValues());
+            current = new FoundDevicesSnapshot(
+                    version,
+                    "\"" + snapshotPrefix + version + "\"",
+                    devices,
+                    objectMapper.writeValueAsBytes(devices)
+            );
+            snapshot = current;
+            return current;
+        }
     }
 
-    private void onDeviceFound(DeviceInfo info) {
-        messagingTemplate.convertAndSend(DEVICES_TOPIC + "/found", info);
+    /**
+     * Completes with new snapshot when its etag is different from the given one
+     */
+    public CompletableFuture<FoundDevicesSnapshot> awaitFoundChange(String etag) {
+        FoundDevicesSnapshot current = getFoundSnapshot();
+        if (!current.getEtag().equals(etag)) {
+            return CompletableFuture.completedFuture(current);
+        }
+        CompletableFuture<FoundDevicesSnapshot> future = new CompletableFuture<>();
+        future.whenComplete((result, throwable) -> {
+            if (future.isCancelled()) {
+                synchronized (snapshotWaiters) {
+                    snapshotWaiters.remove(future);
+                }
+            }
+        });
+        synchronized (snapshotWaiters) {
+            snapshotWaiters.add(future);
+        }
+        // devices could change before the future was added
+        if (foundVersion.get() != current.getVersion()) {
+            notifySnapshotWaiters();
+        }
+        return future;
     }
 
-    private void onDeviceLost(DeviceInfo info) {
-        messagingTemplate.convertAndSend(DEVICES_TOPIC + "/lost", info);
+    // only bumps version, waiters get the snapshot from executor, at most one notification is pending
+    private void foundDevicesChanged() {
+        foundVersion.incrementAndGet();
+        if (notifyScheduled.compareAndSet(false, true)) {
+            snapshotExecutor.execute(() -> {
+                notifyScheduled.set(false);
+                notifySnapshotWaiters();
+            });
+        }
+    }
+
+    private void notifySnapshotWaiters() {
+        List<CompletableFuture<FoundDevicesSnapshot>> waiters;
+        synchronized (snapshotWaiters) {
+            if (snapshotWaiters.isEmpty()) {
+                return;
+            }
+            waiters = List.copyOf(snapshotWaiters);
+            snapshotWaiters.clear();
+        }
+        FoundDevicesSnapshot current = getFoundSnapshot();
+        waiters.forEach((waiter) -> waiter.complete(current));
+    }
+
+    public boolean isFound(String ip) {
+        return cache.contains(new DeviceInfo(ip, null));
+    }
+
+    /**
+     * Device found by other discovery than beacons, e.g. sweep. Keeps device found like a beacon does.
+     */
+    public void putFoundDevice(DeviceInfo info) {
+        DeviceInfo known = cache.get(info);
+        if (known != null) {
+            info.setNetworkInterface(known.getNetworkInterface());
+        }
+        cache.put(info);
+        if (registry.putFound(info)) {
+            foundDevicesChanged();
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${device.search.tick:500}")
+    public void cacheTick() {
+        cache.tick();
+
+        long now = System.nanoTime();
+        double seconds = (now - lastTick) / 1e9;
+        lastTick = now;
+        // exponential moving average over ~10 seconds
+        double alpha = 1 - Math.exp(-seconds / 10);
+        for (InterfaceStats stats : interfaceStats.values()) {
+            long beacons = stats.beacons;
+            stats.rate += alpha * ((beacons - stats.lastBeacons) / seconds - stats.rate);
+            stats.lastBeacons = beacons;
+        }
+    }
+
+    /**
+     * Sends found and lost devices since previous flush as one message.
+     * Device which was lost and found again (or vice versa) during the window isn't reported at all.
+     * Found devices registry is reconciled with the cache for every changed device, reported or not.
+     */
+    @Scheduled(fixedDelayString = "${device.search.events.window:1000}")
+    public void flushChanges() {
+        List<DeviceInfo> changed = new ArrayList<>();
+        List<DeviceInfo> added = new ArrayList<>();
+        List<DeviceInfo> removed = new ArrayList<>();
+        synchronized (changes) {
+            for (Change change : changes.values()) {
+                changed.add(change.info);
+                if (change.found && !change.wasFound) {
+                    added.add(change.info);
+                } else if (!change.found && change.wasFound) {
+                    removed.add(change.info);
+                }
+            }
+            changes.clear();
+        }
+        // found and lost within the window too, device could also send beacon again right after flush
+        for (DeviceInfo info : changed) {
+            if (!cache.contains(info)) {
+                registry.removeFound(info);
+            }
+        }
+        if (added.isEmpty() && removed.isEmpty()) {
+            return;
+        }
+
+        for (DeviceInfo info : removed) {
+            eventPublisher.publishEvent(new DeviceLostEvent(this, info));
+        }
+        for (DeviceInfo info : added) {
+            eventPublisher.publishEvent(new DeviceFoundEvent(this, info));
+        }
+        log.debug("Devices changed: {} found, {} lost", added.size(), removed.size());
+        messagingTemplate.convertAndSend(DEVICES_CHANGES_TOPIC, DevicesChangedMessage.builder()
+                .added(added)
+                .removed(removed)
+                .timestamp(System.currentTimeMillis())
+                .build());
+    }
+
+    private void onDevicesFound(List<DeviceInfo> devices) {
+        addChanges(devices, true);
+        foundDevicesChanged();
+    }
+
+    private void onDevicesLost(List<DeviceInfo> devices) {
+        addChanges(devices, false);
+        foundDevicesChanged();
+    }
+
+    private void addChanges(List<DeviceInfo> devices, boolean found) {
+        synchronized (changes) {
+            for (DeviceInfo info : devices) {
+                Change change = changes.computeIfAbsent(info, (key) -> new Change(!found));
+                change.found = found;
+                change.info = info;
+            }
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "device search";
+    }
+
+    @Override
+    public int getPort() {
+        return searchPort;
+    }
+
+    @Override
+    public String getGroup() {
+        return searchGroup;
+    }
+
+    @Override
+    public void onListening(boolean listening) {
+        socketConnected.set(listening);
     }
 
     @Override
-    public void run() {
-        log.info("Device search job started");
-        try {
-            search();
-        } catch (IOException exception) {
-            log.error("Search job stopped!", exception);
-            throw new RuntimeException(exception);
-        }
-    }
-
-    private void search() throws IOException {
-        SocketAddress address = new InetSocketAddress(InetAddress.getByName(searchGroup), searchPort);
-        MulticastSocket multicastSocket = new MulticastSocket(address);
-        byte[] buf = new byte[4096];
-
-        try {
-            multicastSocket.joinGroup(address, multicastSocket.getNetworkInterface());
-            this.socketConnected.lazySet(true);
-            while (!Thread.interrupted()) {
-                DatagramPacket packet = new DatagramPacket(buf, buf.length);
-                multicastSocket.receive(packet);
-
-                String message = new String(
-                        packet.getData(),
-                        packet.getOffset(),
-                        packet.getLength(),
-                        StandardCharsets.UTF_8
-                );
-
-                DeviceInfo deviceInfo = DeviceInfo.fromMulticastMessage(message);
-
-                if (deviceInfo != null) {
-                    cache.put(deviceInfo);
-                } else {
-                    log.debug("Can't build device info from {}", message);
+    public void onPacket(InetSocketAddress source, String networkInterface, ByteBuffer packet) {
+        InterfaceStats stats = interfaceStats.computeIfAbsent(interfaceKey(networkInterface), (key) -> new InterfaceStats());
+        stats.beacons++;
+
+        DeviceInfo deviceInfo = beaconDecoder.getSame(source.getAddress(), packet);
+        if (deviceInfo != null) {
+            stats.duplicates++;
+        } else {
+            deviceInfo = beaconDecoder.decode(source.getAddress(), packet);
+            if (deviceInfo == null) {
+                stats.invalid++;
+                if (log.isDebugEnabled()) {
+                    log.debug("Can't build device info from {}", StandardCharsets.UTF_8.decode(packet));
                 }
+                return;
             }
-        } catch (Exception exception) {
-            log.error("Search job failed", exception);
-            this.socketConnected.lazySet(false);
-            throw new RuntimeException(exception);
-        } finally {
-            multicastSocket.leaveGroup(address, multicastSocket.getNetworkInterface());
-            multicastSocket.close();
+            stats.decoded++;
+            deviceInfo.setNetworkInterface(networkInterface);
         }
+
+        presenceService.onBeacon(deviceInfo.getIp());
+
+        // interface is resolved by source address subnet, so device is always seen on the same one,
+        // and its repeated beacons (from any interface) are caught as duplicates above
+        cache.put(deviceInfo);
+        if (registry.putFound(deviceInfo)) {
+            foundDevicesChanged();
+        }
+    }
+
+    private static String interfaceKey(String networkInterface) {
+        return networkInterface == null ? UNKNOWN_INTERFACE : networkInterface;
     }
 
+    private static class Change {
+        // state before the window
+        private final boolean wasFound;
+        private boolean found;
+        private DeviceInfo info;
+
+        private Change(boolean wasFound) {
+            this.wasFound = wasFound;
+        }
+    }
+
+    private static class InterfaceStats {
+        // counters are written only by udp listeners thread
+        private volatile long beacons;
+        private volatile long decoded;
+        private volatile long duplicates;
+        private volatile long invalid;
+
+        // updated by cache tick
+        private volatile double rate;
+        private long lastBeacons;
+    }
 }
@@ -1,19 +1,31 @@
 package ru.pobopo.smartthing.gateway.service.device;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
+import ru.pobopo.smartthing.gateway.config.RestTemplateConfig;
 import ru.pobopo.smartthing.gateway.exception.BadRequestException;
+import ru.pobopo.smartthing.gateway.model.device.SavedDeviceRefreshResult;
+import ru.pobopo.smartthing.gateway.model.device.SavedDeviceRefreshStatus;
+import ru.pobopo.smartthing.gateway.model.device.SavedDevicesRefreshResponse;
 import ru.pobopo.smartthing.gateway.repository.FileRepository;
 import ru.pobopo.smartthing.gateway.service.device.api.RestDeviceApi;
 import ru.pobopo.smartthing.model.SavedDeviceInfo;
 
-import java.util.Collection;
-import java.util.Optional;
-import java.util.UUID;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -23,11 +35,29 @@ import java.util.regex.Pattern;
 public class SavedDevicesService {
     private static final Pattern IP_PATTERN = Pattern.compile("^((25[0-5]|(2[0-4]|1\\d|[1-9]|)\\d)\\.?\\b){4}$");
 
+    @Qualifier(RestTemplateConfig.DEVICE_REST_TEMPLATE)
     private final RestTemplate restTemplate;
     private final FileRepository<SavedDeviceInfo> fileRepository;
+    private final DeviceRegistry registry;
+    private final RestDeviceApi deviceApi;
+    private final ObjectMapper objectMapper;
+
+    @Value("${device.saved.refresh.enabled:false}")
+    private boolean refreshEnabled;
+    @Value("${device.saved.refresh.parallelism:16}")
+    private int refreshParallelism;
+
+    private final AtomicReference<CompletableFuture<SavedDevicesRefreshResponse>> runningRefresh = new AtomicReference<>();
+
+    @PostConstruct
+    public void loadDevices() {
+        Collection<SavedDeviceInfo> devices = fileRepository.getAll();
+        devices.forEach(registry::putSaved);
+        log.info("Loaded {} saved devices", devices.size());
+    }
 
     public Collection<SavedDeviceInfo> getDevices() {
-        return fileRepository.getAll();
+        return registry.getSavedDevices();
     }
 
     public SavedDeviceInfo addDevice(String ip) throws BadRequestException {
@@ -46,6 +76,7 @@ public class SavedDevicesService {
         }
         newDeviceInfo.setId(UUID.randomUUID());
         fileRepository.add(newDeviceInfo);
+        registry.putSaved(newDeviceInfo);
         log.info("Added new device {}", newDeviceInfo);
         return newDeviceInfo;
     }
@@ -60,6 +91,7 @@ public class SavedDevicesService {
             throw new BadRequestException("There is no saved device with ip=" + ip);
         }
         fileRepository.delete(device.get().getId());
+        registry.removeSaved(device.get());
         log.info("Device {} deleted", device.get());
     }
 
@@ -72,24 +104,82 @@ public class SavedDevicesService {
         if (device.isEmpty()) {
             throw new BadRequestException("There is no saved device with ip=" + ip);
         }
-        SavedDeviceInfo newInfo = loadDeviceInfo(ip);
-        if (newInfo == null) {
-            throw new BadRequestException("Can't find active device with ip=" + ip);
+        Refresh refresh = refresh(device.get()).join();
+        switch (refresh.result.getStatus()) {
+            case FAILED -> throw new BadRequestException("Can't find active device with ip=" + ip);
+            case UNCHANGED -> log.info("New device info are equals to old one");
+            case UPDATED -> {
+                fileRepository.update(refresh.info);
+                registry.putSaved(refresh.info);
+                log.info("Updated device info {}", refresh.info);
+            }
+        }
+        return refresh.info;
+    }
+
+    /**
+     * Requests info of all saved devices, at most parallelism requests at once,
+     * and writes changed ones in one batch. Concurrent calls share the running refresh.
+     */
+    public CompletableFuture<SavedDevicesRefreshResponse> refreshAll() {
+        CompletableFuture<SavedDevicesRefreshResponse> result = new CompletableFuture<>();
+        CompletableFuture<SavedDevicesRefreshResponse> running = runningRefresh.compareAndExchange(null, result);
+        if (running != null) {
+            return running;
+        }
+
+        List<SavedDeviceInfo> devices = new ArrayList<>(registry.getSavedDevices());
+        log.info("Refreshing {} saved devices", devices.size());
+        Refresh[] refreshes = new Refresh[devices.size()];
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger remaining = new AtomicInteger(devices.size());
+        long started = System.nanoTime();
+        Runnable onComplete = () -> {
+            try {
+                result.complete(saveRefreshed(refreshes, started));
+            } catch (Exception exception) {
+                log.error("Failed to save refreshed devices: {}", exception.getMessage(), exception);
+                result.completeExceptionally(exception);
+            } finally {
+                runningRefresh.set(null);
+            }
+        };
+        if (devices.isEmpty()) {
+            onComplete.run();
+            return result;
         }
-        if (newInfo.equals(device.get())) {
-            log.info("New device info are equals to old one");
-            return newInfo;
+        for (int i = 0; i < Math.min(Math.max(1, refreshParallelism), devices.size()); i++) {
+            refreshNext(devices, refreshes, next, remaining, onComplete);
         }
-        fileRepository.update(device.get());
-        log.info("Updated device info {}", newInfo);
-        return newInfo;
+        return result;
+    }
+
+    @Scheduled(
+            initialDelayString = "${device.saved.refresh.interval:3600000}",
+            fixedDelayString = "${device.saved.refresh.interval:3600000}"
+    )
+    public void scheduledRefresh() {
+        if (!refreshEnabled) {
+            return;
+        }
+        // scheduler threads are shared, so it only logs the result; refresh still running is reused by refreshAll
+        refreshAll().whenComplete((response, error) -> {
+            if (error != null) {
+                log.error("Saved devices refresh failed: {}", error.getMessage());
+                return;
+            }
+            log.info(
+                    "Saved devices refreshed in {}ms: updated={}, unchanged={}, failed={}",
+                    response.getTotalMillis(), response.getUpdated(), response.getUnchanged(), response.getFailed()
+            );
+        });
     }
 
     public Optional<SavedDeviceInfo> getDevice(String ip) {
         if (StringUtils.isBlank(ip)) {
             return Optional.empty();
         }
-        return fileRepository.getAll().stream().filter(deviceInfo -> StringUtils.equals(deviceInfo.getIp(), ip)).findFirst();
+        return Optional.ofNullable(registry.getSavedDevice(ip));
     }
 
     private SavedDeviceInfo loadDeviceInfo(String ip) {
@@ -109,6 +199,95 @@ public class SavedDevicesService {
         }
     }
 
+    // Starts next device refresh when previous one completes, so no more than parallelism requests are in flight.
+    // Completed futures are handled in the loop instead of recursion, rejected requests complete immediately.
+    private void refreshNext(
+            List<SavedDeviceInfo> devices,
+            Refresh[] refreshes,
+            AtomicInteger next,
+            AtomicInteger remaining,
+            Runnable onComplete
+    ) {
+        while (true) {
+            int index = next.getAndIncrement();
+            if (index >= devices.size()) {
+                return;
+            }
+            CompletableFuture<Refresh> future = refresh(devices.get(index)).whenComplete((refresh, throwable) -> {
+                refreshes[index] = refresh;
+                if (remaining.decrementAndGet() == 0) {
+                    onComplete.run();
+                }
+            });
+            if (!future.isDone()) {
+                future.whenComplete((refresh, throwable) -> refreshNext(devices, refreshes, next, remaining, onComplete));
+                return;
+            }
+        }
+    }
+
+    private CompletableFuture<Refresh> refresh(SavedDeviceInfo device) {
+        long started = System.nanoTime();
+        return deviceApi.getInfo(device).handle((response, throwable) -> {
+            SavedDeviceRefreshResult.SavedDeviceRefreshResultBuilder result = SavedDeviceRefreshResult.builder()
+                    .ip(device.getIp())
+                    .name(device.getName())
+                    .latencyMillis(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+            String error = null;
+            SavedDeviceInfo info = null;
+            if (throwable != null) {
+                error = throwable.getMessage();
+            } else if (!response.getStatusCode().is2xxSuccessful() || response.getBody() == null) {
+                error = response.getStatusCode().value() + (response.getBody() == null ? "" : " " + new String(response.getBody(), StandardCharsets.UTF_8));
+            } else {
+                try {
+                    info = objectMapper.readValue(response.getBody(), SavedDeviceInfo.class);
+                } catch (Exception exception) {
+                    error = "Bad device info: " + exception.getMessage();
+                }
+            }
+            if (info == null) {
+                log.warn("Failed to refresh saved device {}: {}", device.getIp(), error);
+                return new Refresh(device, result.status(SavedDeviceRefreshStatus.FAILED).error(error).build());
+            }
+            info.setIp(device.getIp());
+            info.setId(device.getId());
+            boolean changed = !DeviceRegistry.sameInfo(device, info);
+            return new Refresh(
+                    changed ? info : device,
+                    result.name(info.getName()).status(changed ? SavedDeviceRefreshStatus.UPDATED : SavedDeviceRefreshStatus.UNCHANGED).build()
+            );
+        });
+    }
+
+    private SavedDevicesRefreshResponse saveRefreshed(Refresh[] refreshes, long started) {
+        List<SavedDeviceInfo> changed = new ArrayList<>();
+        List<SavedDeviceRefreshResult> results = new ArrayList<>(refreshes.length);
+        int unchanged = 0;
+        int failed = 0;
+        for (Refresh refresh : refreshes) {
+            results.add(refresh.result);
+            switch (refresh.result.getStatus()) {
+                case UPDATED -> changed.add(refresh.info);
+                case UNCHANGED -> unchanged++;
+                case FAILED -> failed++;
+            }
+        }
+        if (!changed.isEmpty()) {
+            fileRepository.updateAll(changed);
+            changed.forEach(registry::putSaved);
+            log.info("Updated saved devices {}", changed);
+        }
+        return SavedDevicesRefreshResponse.builder()
+                .total(refreshes.length)
+                .updated(changed.size())
+                .unchanged(unchanged)
+                .failed(failed)
+                .totalMillis(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started))
+                .results(results)
+                .build();
+    }
+
     private boolean isValidIp(String ip) {
         if (StringUtils.isBlank(ip)) {
             return false;
@@ -116,4 +295,14 @@ public class SavedDevicesService {
         Matcher matcher = IP_PATTERN.matcher(ip);
         return matcher.find();
     }
+
+    private static class Refresh {
+        private final SavedDeviceInfo info;
+        private final SavedDeviceRefreshResult result;
+
+        private Refresh(SavedDeviceInfo info, SavedDeviceRefreshResult result) {
+            this.info = info;
+            this.result = result;
+        }
+    }
 }
@@ -2,6 +2,11 @@ package ru.pobopo.smartthing.gateway.service.device.api;
 
 import ru.pobopo.smartthing.model.device.DeviceInfo;
 
+/**
+ * Device api commands are public methods returning {@code CompletableFuture<ResponseEntity<byte[]>>}
+ * (or plain {@code ResponseEntity<byte[]>} for blocking implementations).
+ * Async commands shouldn't block caller thread while waiting for device.
+ */
 public interface DeviceApi {
     boolean accept(DeviceInfo deviceInfo);
 }
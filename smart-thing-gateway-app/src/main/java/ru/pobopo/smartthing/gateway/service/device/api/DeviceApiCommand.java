@@ -0,0 +1,41 @@
+package ru.pobopo.smartthing.gateway.service.device.api;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import org.springframework.http.ResponseEntity;
+import ru.pobopo.smartthing.gateway.model.device.DeviceApiMethod;
+import ru.pobopo.smartthing.model.device.DeviceInfo;
+import ru.pobopo.smartthing.model.stomp.DeviceRequest;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Device api method resolved once on startup: bound method handle plus
+ * argument binders in parameters order.
+ */
+@RequiredArgsConstructor(access = AccessLevel.PACKAGE)
+public class DeviceApiCommand {
+    @Getter
+    private final String name;
+    @Getter
+    private final DeviceApiMethod description;
+    // (Object[]) -> CompletableFuture<ResponseEntity>, already bound to api instance
+    private final MethodHandle handle;
+    private final ArgumentBinder[] binders;
+
+    @SuppressWarnings("unchecked")
+    public CompletableFuture<ResponseEntity<byte[]>> invoke(DeviceInfo deviceInfo, DeviceRequest request) throws Throwable {
+        Object[] args = new Object[binders.length];
+        for (int i = 0; i < binders.length; i++) {
+            args[i] = binders[i].bind(deviceInfo, request);
+        }
+        return (CompletableFuture<ResponseEntity<byte[]>>) (CompletableFuture<?>) handle.invokeExact(args);
+    }
+
+    @FunctionalInterface
+    interface ArgumentBinder {
+        Object bind(DeviceInfo deviceInfo, DeviceRequest request);
+    }
+}
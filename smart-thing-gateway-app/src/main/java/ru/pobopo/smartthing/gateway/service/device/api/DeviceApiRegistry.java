@@ -0,0 +1,162 @@
+package ru.pobopo.smartthing.gateway.service.device.api;
+
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+import ru.pobopo.smartthing.gateway.exception.DeviceApiException;
+import ru.pobopo.smartthing.gateway.model.device.DeviceApiMethod;
+import ru.pobopo.smartthing.model.device.DeviceInfo;
+import ru.pobopo.smartthing.model.stomp.DeviceRequest;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Parameter;
+import java.lang.reflect.ParameterizedType;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Commands of all device apis, resolved once on startup.
+ * Dispatch is a single map lookup, no reflection on the request path.
+ * Blocking commands (returning plain ResponseEntity) are adapted to completed futures.
+ */
+@Slf4j
+@Component
+public class DeviceApiRegistry {
+    private static final MethodHandle COMPLETED_FUTURE;
+
+    static {
+        try {
+            COMPLETED_FUTURE = MethodHandles.publicLookup().findStatic(
+                    CompletableFuture.class,
+                    "completedFuture",
+                    MethodType.methodType(CompletableFuture.class, Object.class)
+            );
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final List<ApiCommands> apis;
+
+    public DeviceApiRegistry(List<DeviceApi> apis, ObjectMapper objectMapper) {
+        List<ApiCommands> result = new ArrayList<>(apis.size());
+        for (DeviceApi api : apis) {
+            Map<String, DeviceApiCommand> commands = buildCommands(api, objectMapper);
+            log.info("Registered {} commands for api {}", commands.size(), api.getClass().getName());
+            result.add(new ApiCommands(api, commands));
+        }
+        this.apis = List.copyOf(result);
+    }
+
+    public DeviceApiCommand getCommand(DeviceInfo deviceInfo, String command) {
+        ApiCommands apiCommands = findApi(deviceInfo);
+        DeviceApiCommand apiCommand = command == null ? null : apiCommands.commands.get(command);
+        if (apiCommand == null) {
+            throw new DeviceApiException(String.format(
+                    "There is no such method %s in class %s",
+                    command,
+                    apiCommands.api.getClass().getName()
+            ));
+        }
+        return apiCommand;
+    }
+
+    public List<DeviceApiMethod> getMethods(DeviceInfo deviceInfo) {
+        return findApi(deviceInfo).methods;
+    }
+
+    private ApiCommands findApi(DeviceInfo deviceInfo) {
+        for (ApiCommands apiCommands : apis) {
+            if (apiCommands.api.accept(deviceInfo)) {
+                return apiCommands;
+            }
+        }
+        throw new DeviceApiException("Api not found for this target");
+    }
+
+    private static Map<String, DeviceApiCommand> buildCommands(DeviceApi api, ObjectMapper objectMapper) {
+        MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+        // keeps methods order, as api methods list had before
+        Map<String, DeviceApiCommand> commands = new LinkedHashMap<>();
+        for (Method method : api.getClass().getMethods()) {
+            if (!Modifier.isPublic(method.getModifiers()) || !isCommand(method)) {
+                continue;
+            }
+            if (commands.containsKey(method.getName())) {
+                log.warn("Duplicate command {} in api {}, skipping", method.getName(), api.getClass().getName());
+                continue;
+            }
+            try {
+                MethodHandle handle = lookup.unreflect(method).bindTo(api);
+                if (method.getReturnType().equals(ResponseEntity.class)) {
+                    handle = MethodHandles.filterReturnValue(
+                            handle.asType(handle.type().changeReturnType(Object.class)),
+                            COMPLETED_FUTURE
+                    );
+                }
+                handle = handle
+                        .asSpreader(Object[].class, method.getParameterCount())
+                        .asType(MethodType.methodType(CompletableFuture.class, Object[].class));
+                commands.put(method.getName(), new DeviceApiCommand(
+                        method.getName(),
+                        DeviceApiMethod.fromMethod(method),
+                        handle,
+                        buildBinders(method, objectMapper)
+                ));
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException("Can't access api method " + method, e);
+            }
+        }
+        return Collections.unmodifiableMap(commands);
+    }
+
+    private static boolean isCommand(Method method) {
+        if (method.getReturnType().equals(ResponseEntity.class)) {
+            return true;
+        }
+        return method.getReturnType().equals(CompletableFuture.class)
+                && method.getGenericReturnType() instanceof ParameterizedType type
+                && type.getActualTypeArguments()[0] instanceof ParameterizedType argument
+                && argument.getRawType().equals(ResponseEntity.class);
+    }
+
+    private static DeviceApiCommand.ArgumentBinder[] buildBinders(Method method, ObjectMapper objectMapper) {
+        Parameter[] parameters = method.getParameters();
+        DeviceApiCommand.ArgumentBinder[] binders = new DeviceApiCommand.ArgumentBinder[parameters.length];
+        for (int i = 0; i < parameters.length; i++) {
+            Parameter parameter = parameters[i];
+            if (parameter.getType().equals(DeviceInfo.class)) {
+                binders[i] = (deviceInfo, request) -> deviceInfo;
+            } else if (parameter.getType().equals(DeviceRequest.class)) {
+                binders[i] = (deviceInfo, request) -> request;
+            } else {
+                String name = parameter.getName();
+                JavaType type = objectMapper.constructType(parameter.getParameterizedType());
+                binders[i] = (deviceInfo, request) -> {
+                    Map<String, Object> params = request.getParams();
+                    Object value = params == null ? null : params.get(name);
+                    return value == null ? null : objectMapper.convertValue(value, type);
+                };
+            }
+        }
+        return binders;
+    }
+
+    private static class ApiCommands {
+        private final DeviceApi api;
+        private final Map<String, DeviceApiCommand> commands;
+        private final List<DeviceApiMethod> methods;
+
+        private ApiCommands(DeviceApi api, Map<String, DeviceApiCommand> commands) {
+            this.api = api;
+            this.commands = commands;
+            this.methods = commands.values().stream().map(DeviceApiCommand::getDescription).toList();
+        }
+    }
+}
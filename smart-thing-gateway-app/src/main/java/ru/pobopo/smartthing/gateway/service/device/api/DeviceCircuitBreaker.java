@@ -0,0 +1,235 @@
+package ru.pobopo.smartthing.gateway.service.device.api;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import ru.pobopo.smartthing.gateway.event.DeviceFoundEvent;
+import ru.pobopo.smartthing.gateway.event.DeviceLostEvent;
+import ru.pobopo.smartthing.gateway.model.device.DeviceBreakerStats;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per device (by ip) circuit breaker.
+ * Circuit opens after several consecutive transport failures or when device search lost the device,
+ * requests to open circuit fail fast. When open time passes, circuit goes half-open and the next
+ * request triggers a health probe: success closes the circuit, failure opens it again for doubled time.
+ * Device found by search closes the circuit immediately.
+ */
+@Slf4j
+@Component
+public class DeviceCircuitBreaker {
+    private static final long IDLE_CIRCUIT_TTL = TimeUnit.MINUTES.toNanos(10);
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    public enum Decision {
+        ALLOW,
+        REJECT,
+        // reject and probe device health
+        PROBE
+    }
+
+    @Value("${device.api.breaker.enabled:true}")
+    private boolean enabled;
+    @Value("${device.api.breaker.failures:3}")
+    private int failureThreshold;
+    @Value("${device.api.breaker.open-time:5000}")
+    private long openTime;
+    @Value("${device.api.breaker.max-open-time:60000}")
+    private long maxOpenTime;
+
+    private final Map<String, Circuit> circuits = new ConcurrentHashMap<>();
+
+    public Decision tryAcquire(String ip) {
+        if (!enabled) {
+            return Decision.ALLOW;
+        }
+        Circuit circuit = circuits.get(ip);
+        if (circuit == null) {
+            return Decision.ALLOW;
+        }
+        synchronized (circuit) {
+            circuit.lastUsed = System.nanoTime();
+            switch (circuit.state) {
+                case CLOSED -> {
+                    return Decision.ALLOW;
+                }
+                case OPEN -> {
+                    circuit.rejected++;
+                    if (System.nanoTime() - circuit.retryAt >= 0) {
+                        changeState(circuit, State.HALF_OPEN, "open time passed");
+                        return Decision.PROBE;
+                    }
+                    return Decision.REJECT;
+                }
+                default -> {
+                    circuit.rejected++;
+                    return Decision.REJECT;
+                }
+            }
+        }
+    }
+
+    public void onSuccess(String ip) {
+        Circuit circuit = circuits.get(ip);
+        if (circuit == null) {
+            return;
+        }
+        synchronized (circuit) {
+            circuit.consecutiveFailures = 0;
+            if (circuit.state != State.CLOSED) {
+                close(circuit, "request succeeded");
+            }
+        }
+    }
+
+    public void onFailure(String ip, String error) {
+        if (!enabled) {
+            return;
+        }
+        Circuit circuit = circuits.computeIfAbsent(ip, Circuit::new);
+        synchronized (circuit) {
+            circuit.lastUsed = System.nanoTime();
+            circuit.failures++;
+            circuit.consecutiveFailures++;
+            circuit.lastError = error;
+            // in half-open state only probe result matters, late failures of old requests are ignored
+            if (circuit.state == State.CLOSED && circuit.consecutiveFailures >= failureThreshold) {
+                open(circuit, openTime, "too many failures");
+            }
+        }
+    }
+
+    public void onProbeResult(String ip, boolean success, String error) {
+        Circuit circuit = circuits.get(ip);
+        if (circuit == null) {
+            return;
+        }
+        synchronized (circuit) {
+            if (circuit.state != State.HALF_OPEN) {
+                return;
+            }
+            if (success) {
+                circuit.consecutiveFailures = 0;
+                close(circuit, "health probe succeeded");
+            } else {
+                circuit.failures++;
+                circuit.lastError = error;
+                open(circuit, Math.min(maxOpenTime, Math.max(openTime, circuit.openTime * 2)), "health probe failed");
+            }
+        }
+    }
+
+    @EventListener
+    public void onDeviceFound(DeviceFoundEvent event) {
+        Circuit circuit = circuits.get(event.getDeviceInfo().getIp());
+        if (circuit == null) {
+            return;
+        }
+        synchronized (circuit) {
+            circuit.consecutiveFailures = 0;
+            if (circuit.state != State.CLOSED) {
+                close(circuit, "device found");
+            }
+        }
+    }
+
+    @EventListener
+    public void onDeviceLost(DeviceLostEvent event) {
+        if (!enabled) {
+            return;
+        }
+        Circuit circuit = circuits.computeIfAbsent(event.getDeviceInfo().getIp(), Circuit::new);
+        synchronized (circuit) {
+            circuit.lastUsed = System.nanoTime();
+            if (circuit.state == State.CLOSED) {
+                circuit.lastError = "Device lost";
+                open(circuit, openTime, "device lost");
+            }
+        }
+    }
+
+    public void reset(String ip) {
+        Circuit circuit = circuits.remove(ip);
+        if (circuit != null) {
+            log.info("Circuit of device {} reset", ip);
+        }
+    }
+
+    public List<DeviceBreakerStats> getStats() {
+        return circuits.values().stream().map(Circuit::getStats).toList();
+    }
+
+    @Scheduled(fixedDelay = 60000)
+    public void removeIdleCircuits() {
+        long now = System.nanoTime();
+        for (String ip : circuits.keySet()) {
+            circuits.computeIfPresent(ip, (key, circuit) -> {
+                synchronized (circuit) {
+                    boolean idle = circuit.state == State.CLOSED
+                            && circuit.consecutiveFailures == 0
+                            && now - circuit.lastUsed > IDLE_CIRCUIT_TTL;
+                    return idle ? null : circuit;
+                }
+            });
+        }
+    }
+
+    private void open(Circuit circuit, long time, String reason) {
+        circuit.openTime = time;
+        circuit.retryAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(time);
+        changeState(circuit, State.OPEN, reason);
+    }
+
+    private void close(Circuit circuit, String reason) {
+        circuit.openTime = openTime;
+        changeState(circuit, State.CLOSED, reason);
+    }
+
+    private void changeState(Circuit circuit, State state, String reason) {
+        log.info("Circuit of device {}: {} -> {} ({})", circuit.ip, circuit.state, state, reason);
+        circuit.state = state;
+        circuit.stateChangedAt = System.currentTimeMillis();
+    }
+
+    private static class Circuit {
+        private final String ip;
+        private State state = State.CLOSED;
+        private int consecutiveFailures;
+        private long failures;
+        private long rejected;
+        private String lastError;
+        private long openTime;
+        private long retryAt;
+        private long stateChangedAt = System.currentTimeMillis();
+        private long lastUsed = System.nanoTime();
+
+        private Circuit(String ip) {
+            this.ip = ip;
+        }
+
+        private synchronized DeviceBreakerStats getStats() {
+            long retryIn = state == State.OPEN ? Math.max(0, retryAt - System.nanoTime()) : 0;
+            return DeviceBreakerStats.builder()
+                    .ip(ip)
+                    .state(state)
+                    .consecutiveFailures(consecutiveFailures)
+                    .failures(failures)
+                    .rejected(rejected)
+                    .lastError(lastError)
+                    .stateChangedAt(stateChangedAt)
+                    .retryIn(TimeUnit.NANOSECONDS.toMillis(retryIn))
+                    .build();
+        }
+    }
+}
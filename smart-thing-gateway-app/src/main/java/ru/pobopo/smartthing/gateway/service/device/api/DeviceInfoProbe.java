@@ -0,0 +1,86 @@
+package ru.pobopo.smartthing.gateway.service.device.api;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
+import org.apache.hc.client5.http.async.methods.SimpleRequestBuilder;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.core5.concurrent.FutureCallback;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+import ru.pobopo.smartthing.model.device.DeviceInfo;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
+/**
+ * Loads device info by ip with short timeouts, bypassing device request limiter and circuit breaker.
+ * Meant for discovery and refresh of device info, where host may be not a device or not exist at all.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class DeviceInfoProbe {
+    @Qualifier("deviceProbeHttpClient")
+    private final CloseableHttpAsyncClient httpClient;
+    private final ObjectMapper objectMapper;
+
+    /**
+     * @return device info with given ip, or null if host didn't respond with device info
+     */
+    public CompletableFuture<DeviceInfo> probe(String ip) {
+        return probe(ip, DeviceInfo.class);
+    }
+
+    public <T extends DeviceInfo> CompletableFuture<T> probe(String ip, Class<T> type) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Future<SimpleHttpResponse> request = httpClient.execute(
+                SimpleRequestBuilder.get("http://" + ip + RestDeviceApi.SYSTEM_INFO).build(),
+                new FutureCallback<>() {
+                    @Override
+                    public void completed(SimpleHttpResponse response) {
+                        result.complete(parse(ip, response, type));
+                    }
+
+                    @Override
+                    public void failed(Exception exception) {
+                        log.trace("Probe of {} failed: {}", ip, exception.getMessage());
+                        result.complete(null);
+                    }
+
+                    @Override
+                    public void cancelled() {
+                        result.complete(null);
+                    }
+                }
+        );
+        // caller can cancel probe, e.g. on its own timeout
+        result.whenComplete((info, throwable) -> {
+            if (result.isCancelled()) {
+                request.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    private <T extends DeviceInfo> T parse(String ip, SimpleHttpResponse response, Class<T> type) {
+        byte[] body = response.getBodyBytes();
+        if (response.getCode() != 200 || body == null || body.length == 0 || body[0] != '{') {
+            return null;
+        }
+        try {
+            T info = objectMapper.readValue(body, type);
+            // any json answer isn't enough, device always has a type
+            if (info == null || StringUtils.isBlank(info.getType())) {
+                return null;
+            }
+            info.setIp(ip);
+            return info;
+        } catch (Exception exception) {
+            log.debug("Host {} responded with bad device info: {}", ip, exception.getMessage());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package ru.pobopo.smartthing.gateway.service.device.api;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import ru.pobopo.smartthing.gateway.exception.DeviceBusyException;
+import ru.pobopo.smartthing.gateway.model.device.DeviceLimiterStats;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits concurrent requests to every device (by ip).
+ * Requests over the limit wait in a bounded queue ordered by {@link DeviceRequestPriority},
+ * requests with the same priority are served in arrival order.
+ */
+@Slf4j
+@Component
+public class DeviceRequestLimiter {
+    private static final long IDLE_LANE_TTL = TimeUnit.MINUTES.toNanos(10);
+
+    @Value("${device.api.limit.permits:1}")
+    private int permits;
+    @Value("${device.api.limit.queue:16}")
+    private int queueCapacity;
+    @Value("${device.api.limit.wait:5000}")
+    private long maxWait;
+
+    private final Map<String, Lane> lanes = new ConcurrentHashMap<>();
+
+    public CompletableFuture<Permit> acquireAsync(String ip, DeviceRequestPriority priority) {
+        while (true) {
+            Lane lane = lanes.computeIfAbsent(ip, (key) -> new Lane(key, permits));
+            Waiter waiter;
+            synchronized (lane) {
+                if (lane.retired) {
+                    continue;
+                }
+                lane.lastUsed = System.nanoTime();
+                if (lane.available > 0 && lane.queue.isEmpty()) {
+                    lane.available--;
+                    lane.acquired.incrementAndGet();
+                    return CompletableFuture.completedFuture(new Permit(lane));
+                }
+                if (lane.queue.size() >= queueCapacity) {
+                    lane.rejected.incrementAndGet();
+                    return CompletableFuture.failedFuture(new DeviceBusyException("Too many requests to device " + ip));
+                }
+                waiter = new Waiter(priority, lane.sequence++);
+                lane.queue.add(waiter);
+            }
+
+            return waiter.future
+                    .orTimeout(maxWait, TimeUnit.MILLISECONDS)
+                    .exceptionally((throwable) -> {
+                        if (throwable instanceof TimeoutException) {
+                            synchronized (lane) {
+                                lane.queue.remove(waiter);
+                            }
+                            lane.timedOut.incrementAndGet();
+                            throw new DeviceBusyException("Device " + ip + " is busy, request waited too long");
+                        }
+                        throw new CompletionException(throwable);
+                    });
+        }
+    }
+
+    public List<DeviceLimiterStats> getStats() {
+        return lanes.values().stream().map(Lane::getStats).toList();
+    }
+
+    @Scheduled(fixedDelay = 60000)
+    public void removeIdleLanes() {
+        long now = System.nanoTime();
+        for (String ip : lanes.keySet()) {
+            lanes.computeIfPresent(ip, (key, lane) -> {
+                synchronized (lane) {
+                    if (lane.available == permits && lane.queue.isEmpty() && now - lane.lastUsed > IDLE_LANE_TTL) {
+                        lane.retired = true;
+                        return null;
+                    }
+                    return lane;
+                }
+            });
+        }
+    }
+
+    private static void release(Lane lane) {
+        while (true) {
+            Waiter next;
+            synchronized (lane) {
+                next = lane.queue.poll();
+                if (next == null) {
+                    lane.available++;
+                    return;
+                }
+            }
+            // complete outside the lock, dependent stages run in this thread
+            if (next.future.complete(new Permit(lane))) {
+                long waited = System.nanoTime() - next.enqueuedAt;
+                lane.acquired.incrementAndGet();
+                lane.totalWait.addAndGet(waited);
+                lane.maxWait.accumulateAndGet(waited, Math::max);
+                return;
+            }
+            // waiter already timed out, pass permit to the next one
+        }
+    }
+
+    public static class Permit implements AutoCloseable {
+        private final Lane lane;
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        private Permit(Lane lane) {
+            this.lane = lane;
+        }
+
+        @Override
+        public void close() {
+            if (released.compareAndSet(false, true)) {
+                release(lane);
+            }
+        }
+    }
+
+    private static class Waiter {
+        private final DeviceRequestPriority priority;
+        private final long sequence;
+        private final long enqueuedAt = System.nanoTime();
+        private final CompletableFuture<Permit> future = new CompletableFuture<>();
+
+        private Waiter(DeviceRequestPriority priority, long sequence) {
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+    }
+
+    private static class Lane {
+        private static final Comparator<Waiter> ORDER = Comparator
+                .comparing((Waiter waiter) -> waiter.priority)
+                .thenComparingLong((waiter) -> waiter.sequence);
+
+        private final String ip;
+        private final int permits;
+        private final PriorityQueue<Waiter> queue = new PriorityQueue<>(ORDER);
+        private int available;
+        private long sequence;
+        private boolean retired;
+        private volatile long lastUsed = System.nanoTime();
+
+        private final AtomicLong acquired = new AtomicLong();
+        private final AtomicLong rejected = new AtomicLong();
+        private final AtomicLong timedOut = new AtomicLong();
+        private final AtomicLong totalWait = new AtomicLong();
+        private final AtomicLong maxWait = new AtomicLong();
+
+        private Lane(String ip, int permits) {
+            this.ip = ip;
+            this.permits = permits;
+            this.available = permits;
+        }
+
+        private synchronized DeviceLimiterStats getStats() {
+            long acquiredCount = acquired.get();
+            return DeviceLimiterStats.builder()
+                    .ip(ip)
+                    .active(permits - available)
+                    .queued(queue.size())
+                    .acquired(acquiredCount)
+                    .rejected(rejected.get())
+                    .timedOut(timedOut.get())
+                    .avgWaitMillis(acquiredCount == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalWait.get() / acquiredCount))
+                    .maxWaitMillis(TimeUnit.NANOSECONDS.toMillis(maxWait.get()))
+                    .build();
+        }
+    }
+}
@@ -0,0 +1,8 @@
+package ru.pobopo.smartthing.gateway.service.device.api;
+
+// Declaration order is queue order: control commands go first, polling reads last
+public enum DeviceRequestPriority {
+    CONTROL,
+    NORMAL,
+    POLLING
+}
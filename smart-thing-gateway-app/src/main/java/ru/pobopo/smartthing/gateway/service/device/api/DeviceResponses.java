@@ -0,0 +1,36 @@
+package ru.pobopo.smartthing.gateway.service.device.api;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatusCode;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Device responses are passed around as raw bytes with device content type,
+ * body is decoded only where text is required (cloud replies, batch results).
+ */
+public final class DeviceResponses {
+    private static final MediaType TEXT_PLAIN_UTF8 = new MediaType(MediaType.TEXT_PLAIN, StandardCharsets.UTF_8);
+
+    private DeviceResponses() {
+    }
+
+    public static ResponseEntity<byte[]> text(String message, HttpStatusCode status) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(TEXT_PLAIN_UTF8);
+        return new ResponseEntity<>(message.getBytes(StandardCharsets.UTF_8), headers, status);
+    }
+
+    public static String bodyAsString(ResponseEntity<byte[]> response) {
+        byte[] body = response.getBody();
+        if (body == null) {
+            return null;
+        }
+        MediaType contentType = response.getHeaders().getContentType();
+        Charset charset = contentType == null ? null : contentType.getCharset();
+        return new String(body, charset == null ? StandardCharsets.UTF_8 : charset);
+    }
+}
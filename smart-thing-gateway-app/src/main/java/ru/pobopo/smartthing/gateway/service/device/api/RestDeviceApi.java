@@ -1,19 +1,31 @@
 package ru.pobopo.smartthing.gateway.service.device.api;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
-import org.springframework.http.HttpEntity;
+import org.apache.hc.client5.http.async.methods.SimpleHttpRequest;
+import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
+import org.apache.hc.client5.http.async.methods.SimpleRequestBuilder;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.core5.concurrent.FutureCallback;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.Header;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.HttpStatusCode;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Component;
-import org.springframework.web.client.HttpClientErrorException;
-import org.springframework.web.client.HttpServerErrorException;
-import org.springframework.web.client.RestTemplate;
+import ru.pobopo.smartthing.gateway.exception.DeviceBusyException;
 import ru.pobopo.smartthing.model.device.DeviceInfo;
 
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 @Slf4j
 @Component
@@ -38,7 +50,11 @@ public class RestDeviceApi implements DeviceApi {
     public final static String METRICS = "/metrics";
     public final static String SETTINGS = "/settings";
 
-    private final RestTemplate restTemplate;
+    @Qualifier("deviceAsyncHttpClient")
+    private final CloseableHttpAsyncClient httpClient;
+    private final ObjectMapper objectMapper;
+    private final DeviceRequestLimiter limiter;
+    private final DeviceCircuitBreaker breaker;
 
     @Override
     public boolean accept(DeviceInfo deviceInfo) {
@@ -48,15 +64,15 @@ public class RestDeviceApi implements DeviceApi {
         return true;
     }
 
-    public ResponseEntity<String> health(DeviceInfo info) {
+    public CompletableFuture<ResponseEntity<byte[]>> health(DeviceInfo info) {
         return sendRequest(info, HEALTH);
     }
 
-    public ResponseEntity<String> getWiFi(DeviceInfo info) {
+    public CompletableFuture<ResponseEntity<byte[]>> getWiFi(DeviceInfo info) {
         return sendRequest(info, WIFI);
     }
 
-    public ResponseEntity<String> setWiFi(DeviceInfo info, String ssid, String password, Integer mode) {
+    public CompletableFuture<ResponseEntity<byte[]>> setWiFi(DeviceInfo info, String ssid, String password, Integer mode) {
         return sendRequest(
                 info,
                 WIFI,
@@ -69,11 +85,11 @@ public class RestDeviceApi implements DeviceApi {
         );
     }
 
-    public ResponseEntity<String> getInfo(DeviceInfo info) {
+    public CompletableFuture<ResponseEntity<byte[]>> getInfo(DeviceInfo info) {
         return sendRequest(info, SYSTEM_INFO);
     }
 
-    public ResponseEntity<String> saveName(DeviceInfo info, String name) {
+    public CompletableFuture<ResponseEntity<byte[]>> saveName(DeviceInfo info, String name) {
         return sendRequest(
                 info,
                 SYSTEM_INFO,
@@ -82,11 +98,11 @@ public class RestDeviceApi implements DeviceApi {
         );
     }
 
-    public ResponseEntity<String> getActions(DeviceInfo info) {
+    public CompletableFuture<ResponseEntity<byte[]>> getActions(DeviceInfo info) {
         return sendRequest(info, GET_ACTIONS);
     }
 
-    public ResponseEntity<String> callAction(DeviceInfo info, String name) {
+    public CompletableFuture<ResponseEntity<byte[]>> callAction(DeviceInfo info, String name) {
         return sendRequest(
                 info,
                 CALL_ACTION + "?name=" + name,
@@ -95,7 +111,7 @@ public class RestDeviceApi implements DeviceApi {
         );
     }
 
-    public ResponseEntity<String> actionSchedule(DeviceInfo info, String name, long callDelay) {
+    public CompletableFuture<ResponseEntity<byte[]>> actionSchedule(DeviceInfo info, String name, long callDelay) {
         return sendRequest(
                 info,
                 ACTION_SCHEDULE,
@@ -104,18 +120,18 @@ public class RestDeviceApi implements DeviceApi {
         );
     }
 
-    public ResponseEntity<String> getSensors(DeviceInfo info) {
+    public CompletableFuture<ResponseEntity<byte[]>> getSensors(DeviceInfo info) {
         return sendRequest(
                 info,
                 SENSORS
         );
     }
 
-    public ResponseEntity<String> getConfigValues(DeviceInfo info) {
+    public CompletableFuture<ResponseEntity<byte[]>> getConfigValues(DeviceInfo info) {
         return sendRequest(info, CONFIG_VALUES);
     }
 
-    public ResponseEntity<String> saveConfigValues(DeviceInfo info, Map<String, Object> values) {
+    public CompletableFuture<ResponseEntity<byte[]>> saveConfigValues(DeviceInfo info, Map<String, Object> values) {
         return sendRequest(
                 info,
                 CONFIG_VALUES,
@@ -124,7 +140,7 @@ public class RestDeviceApi implements DeviceApi {
         );
     }
 
-    public ResponseEntity<String> deleteConfigValue(DeviceInfo info, String name) {
+    public CompletableFuture<ResponseEntity<byte[]>> deleteConfigValue(DeviceInfo info, String name) {
         return sendRequest(
                 info,
                 CONFIG_VALUES,
@@ -133,7 +149,7 @@ public class RestDeviceApi implements DeviceApi {
         );
     }
 
-    public ResponseEntity<String> deleteAllConfigValues(DeviceInfo info) {
+    public CompletableFuture<ResponseEntity<byte[]>> deleteAllConfigValues(DeviceInfo info) {
         return sendRequest(
                 info,
                 DELETE_ALL_CONFIG_VALUES,
@@ -142,14 +158,14 @@ public class RestDeviceApi implements DeviceApi {
         );
     }
 
-    public ResponseEntity<String> getAllHooks(DeviceInfo info) {
+    public CompletableFuture<ResponseEntity<byte[]>> getAllHooks(DeviceInfo info) {
         return sendRequest(
                 info,
                 HOOKS
         );
     }
 
-    public ResponseEntity<String> getHooks(DeviceInfo info, String sensor) {
+    public CompletableFuture<ResponseEntity<byte[]>> getHooks(DeviceInfo info, String sensor) {
         return sendRequest(
                 info,
                 String.format(
@@ -160,7 +176,7 @@ public class RestDeviceApi implements DeviceApi {
         );
     }
 
-    public ResponseEntity<String> getHookById(DeviceInfo info, String sensor, String id) {
+    public CompletableFuture<ResponseEntity<byte[]>> getHookById(DeviceInfo info, String sensor, String id) {
         return sendRequest(
                 info,
                 String.format(
@@ -172,14 +188,14 @@ public class RestDeviceApi implements DeviceApi {
         );
     }
 
-    public ResponseEntity<String> getHooksTemplates(DeviceInfo info, String sensor) {
+    public CompletableFuture<ResponseEntity<byte[]>> getHooksTemplates(DeviceInfo info, String sensor) {
         return sendRequest(
                 info,
                 HOOKS_TEMPLATES + "?sensor=" + sensor
         );
     }
 
-    public ResponseEntity<String> createHook(DeviceInfo info, String sensor, Map<String, Object> hook) {
+    public CompletableFuture<ResponseEntity<byte[]>> createHook(DeviceInfo info, String sensor, Map<String, Object> hook) {
         return sendRequest(
                 info,
                 HOOKS,
@@ -191,7 +207,7 @@ public class RestDeviceApi implements DeviceApi {
         );
     }
 
-    public ResponseEntity<String> updateHook(DeviceInfo info, String sensor, Map<String, Object> hook) {
+    public CompletableFuture<ResponseEntity<byte[]>> updateHook(DeviceInfo info, String sensor, Map<String, Object> hook) {
         return sendRequest(
                 info,
                 HOOKS,
@@ -203,7 +219,7 @@ public class RestDeviceApi implements DeviceApi {
         );
     }
 
-    public ResponseEntity<String> deleteHook(DeviceInfo info, String sensor, String id) {
+    public CompletableFuture<ResponseEntity<byte[]>> deleteHook(DeviceInfo info, String sensor, String id) {
         return sendRequest(
                 info,
                 String.format(
@@ -217,18 +233,18 @@ public class RestDeviceApi implements DeviceApi {
         );
     }
 
-    public ResponseEntity<String> getFeatures(DeviceInfo info) {
+    public CompletableFuture<ResponseEntity<byte[]>> getFeatures(DeviceInfo info) {
         return sendRequest(info, FEATURES, HttpMethod.GET, null);
     }
 
-    public ResponseEntity<String> getMetrics(DeviceInfo info) {
+    public CompletableFuture<ResponseEntity<byte[]>> getMetrics(DeviceInfo info) {
         return sendRequest(
                 info,
                 METRICS
         );
     }
 
-    public ResponseEntity<String> exportSettings(DeviceInfo info) {
+    public CompletableFuture<ResponseEntity<byte[]>> exportSettings(DeviceInfo info) {
         return sendRequest(
                 info,
                 SETTINGS,
@@ -237,9 +253,9 @@ public class RestDeviceApi implements DeviceApi {
         );
     }
 
-    public ResponseEntity<String> importSettings(DeviceInfo info, String settings) {
+    public CompletableFuture<ResponseEntity<byte[]>> importSettings(DeviceInfo info, String settings) {
         if (StringUtils.isBlank(settings) || settings.charAt(0) < '0' || settings.charAt(0) > '9') {
-            return new ResponseEntity<>("Bad settings dump", HttpStatus.BAD_REQUEST);
+            return CompletableFuture.completedFuture(DeviceResponses.text("Bad settings dump", HttpStatus.BAD_REQUEST));
         }
 
         return sendRequest(
@@ -250,7 +266,7 @@ public class RestDeviceApi implements DeviceApi {
         );
     }
 
-    public ResponseEntity<String> testHook(DeviceInfo info, String sensor, String id, String value) {
+    public CompletableFuture<ResponseEntity<byte[]>> testHook(DeviceInfo info, String sensor, String id, String value) {
         return this.sendRequest(
                 info,
                 String.format(
@@ -263,19 +279,19 @@ public class RestDeviceApi implements DeviceApi {
         );
     }
 
-    public ResponseEntity<String> restart(DeviceInfo info) {
+    public CompletableFuture<ResponseEntity<byte[]>> restart(DeviceInfo info) {
         return this.sendRequest(info, "/danger/restart", HttpMethod.POST, null);
     }
 
-    public ResponseEntity<String> wipe(DeviceInfo info) {
+    public CompletableFuture<ResponseEntity<byte[]>> wipe(DeviceInfo info) {
         return this.sendRequest(info, "/danger/wipe", HttpMethod.POST, null);
     }
 
-    protected ResponseEntity<String> sendRequest(DeviceInfo info, String path) {
+    protected CompletableFuture<ResponseEntity<byte[]>> sendRequest(DeviceInfo info, String path) {
         return sendRequest(info, path, HttpMethod.GET, null);
     }
 
-    protected ResponseEntity<String> sendRequest(DeviceInfo info, String path, HttpMethod method, Object payload) {
+    protected CompletableFuture<ResponseEntity<byte[]>> sendRequest(DeviceInfo info, String path, HttpMethod method, Object payload) {
         String url = buildUrl(info, path);
         log.debug(
                 "Sending request [{}] {} - {}",
@@ -284,20 +300,121 @@ public class RestDeviceApi implements DeviceApi {
                 payload == null ? "no payload" : payload
         );
 
+        String ip = info.getIp();
+        DeviceCircuitBreaker.Decision decision = breaker.tryAcquire(ip);
+        if (decision != DeviceCircuitBreaker.Decision.ALLOW) {
+            if (decision == DeviceCircuitBreaker.Decision.PROBE) {
+                probe(info);
+            }
+            log.debug("Request {} rejected, device circuit is open", url);
+            return CompletableFuture.completedFuture(DeviceResponses.text(
+                    "Device " + ip + " is unavailable",
+                    HttpStatus.SERVICE_UNAVAILABLE
+            ));
+        }
+
+        SimpleHttpRequest request;
+        try {
+            request = buildRequest(url, method, payload);
+        } catch (JsonProcessingException exception) {
+            log.error("Failed to serialize payload {}", exception.getMessage());
+            return CompletableFuture.completedFuture(DeviceResponses.text(exception.getMessage(), HttpStatus.BAD_REQUEST));
+        }
+
+        return limiter.acquireAsync(ip, priority(path, method))
+                .thenCompose((permit) -> execute(request).whenComplete((response, throwable) -> permit.close()))
+                .thenApply((response) -> {
+                    breaker.onSuccess(ip);
+                    return toResponseEntity(response);
+                })
+                .exceptionally((throwable) -> {
+                    Throwable cause = throwable instanceof CompletionException ? throwable.getCause() : throwable;
+                    if (cause instanceof DeviceBusyException) {
+                        log.warn("Request {} rejected: {}", url, cause.getMessage());
+                        return DeviceResponses.text(cause.getMessage(), HttpStatus.TOO_MANY_REQUESTS);
+                    }
+                    log.error("Failed to send request {}: {}", url, cause.toString());
+                    breaker.onFailure(ip, cause.toString());
+                    return DeviceResponses.text("Device " + ip + " is unreachable: " + cause.getMessage(), HttpStatus.BAD_GATEWAY);
+                });
+    }
+
+    // goes around limiter and breaker, any http response means device is alive
+    private void probe(DeviceInfo info) {
+        CompletableFuture<SimpleHttpResponse> result;
+        try {
+            String url = buildUrl(info, HEALTH);
+            log.info("Probing device health {}", url);
+            result = execute(SimpleRequestBuilder.get(url).build());
+        } catch (RuntimeException exception) {
+            // probe must report back, otherwise circuit stays half open
+            result = CompletableFuture.failedFuture(exception);
+        }
+        result.whenComplete((response, throwable) -> breaker.onProbeResult(
+                info.getIp(),
+                throwable == null,
+                throwable == null ? null : throwable.toString()
+        ));
+    }
+
+    // never throws, client errors (closed client, bad request) complete future instead, so callers release their permits
+    private CompletableFuture<SimpleHttpResponse> execute(SimpleHttpRequest request) {
+        CompletableFuture<SimpleHttpResponse> future = new CompletableFuture<>();
         try {
-            return restTemplate.exchange(
-                    url,
-                    method,
-                    new HttpEntity<>(payload == null ? "" : payload),
-                    String.class
-            );
-        } catch (HttpClientErrorException | HttpServerErrorException exception) {
-            log.error("Request failed: {}", exception.getMessage());
-            return new ResponseEntity<>(exception.getMessage(), exception.getStatusCode());
-        } catch (Exception exception) {
-            log.error("Failed to send request {}", exception.getMessage(), exception);
-            return new ResponseEntity<>(HttpStatus.FORBIDDEN);
+            httpClient.execute(request, new FutureCallback<>() {
+                @Override
+                public void completed(SimpleHttpResponse response) {
+                    future.complete(response);
+                }
+
+                @Override
+                public void failed(Exception exception) {
+                    future.completeExceptionally(exception);
+                }
+
+                @Override
+                public void cancelled() {
+                    future.cancel(false);
+                }
+            });
+        } catch (RuntimeException exception) {
+            future.completeExceptionally(exception);
+        }
+        return future;
+    }
+
+    private SimpleHttpRequest buildRequest(String url, HttpMethod method, Object payload) throws JsonProcessingException {
+        SimpleRequestBuilder builder = SimpleRequestBuilder.create(method.name()).setUri(url);
+        if (payload instanceof String string) {
+            builder.setBody(string, ContentType.TEXT_PLAIN.withCharset(StandardCharsets.UTF_8));
+        } else if (payload != null) {
+            builder.setBody(objectMapper.writeValueAsBytes(payload), ContentType.APPLICATION_JSON);
+        }
+        return builder.build();
+    }
+
+    private ResponseEntity<byte[]> toResponseEntity(SimpleHttpResponse response) {
+        HttpHeaders headers = new HttpHeaders();
+        for (Header header : response.getHeaders()) {
+            headers.add(header.getName(), header.getValue());
+        }
+        HttpStatusCode status = HttpStatusCode.valueOf(response.getCode());
+        if (status.isError()) {
+            log.error("Request failed: {} {}", response.getCode(), response.getReasonPhrase());
+        }
+
+        // body is passed as is, without decoding
+        return new ResponseEntity<>(response.getBodyBytes(), headers, status);
+    }
+
+    private DeviceRequestPriority priority(String path, HttpMethod method) {
+        if (!HttpMethod.GET.equals(method) || path.startsWith(CALL_ACTION)) {
+            return DeviceRequestPriority.CONTROL;
+        }
+        if (path.startsWith(SENSORS) || path.startsWith(METRICS) || path.startsWith(HEALTH)) {
+            return DeviceRequestPriority.POLLING;
         }
+        return DeviceRequestPriority.NORMAL;
     }
 
     private String buildUrl(DeviceInfo info, String path) {
@@ -1,5 +1,6 @@
 package ru.pobopo.smartthing.gateway.service.device.log;
 
+import jakarta.annotation.PostConstruct;
 import lombok.RequiredArgsConstructor;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
@@ -9,57 +10,375 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import ru.pobopo.smartthing.consumers.DeviceLogsConsumer;
 import ru.pobopo.smartthing.gateway.model.logs.DeviceLogsFilter;
+import ru.pobopo.smartthing.gateway.model.logs.DeviceLogsPage;
+import ru.pobopo.smartthing.model.DeviceLogSource;
 import ru.pobopo.smartthing.model.DeviceLoggerMessage;
+import ru.pobopo.smartthing.model.device.DeviceInfo;
 
-import java.util.List;
-import java.util.concurrent.ConcurrentLinkedDeque;
-import java.util.stream.Stream;
+import java.lang.invoke.VarHandle;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import static ru.pobopo.smartthing.gateway.config.StompMessagingConfig.DEVICES_TOPIC;
 
+/**
+ * Last device logs in a ring of preallocated arrays, one array per message field.
+ * Every message gets next sequence number, the oldest messages are dropped when there are more than
+ * cache size of them or they take more than max bytes, and their slots are cleared.
+ * Messages are written by logs processor thread only. Readers don't lock: slot sequence is cleared before
+ * the slot is rewritten and set after, so reader checks it around reading the fields and stops at the first changed slot.
+ * <p>
+ * Sequences of cached messages are also indexed by device, tag and level when added, and removed from indexes
+ * when dropped. Filtered query reads only messages from the smallest index matching the filter,
+ * other conditions are checked against index keys of the message and its lowercased text.
+ */
 @Service
 @RequiredArgsConstructor
 public class DeviceLogsCacheService implements DeviceLogsConsumer {
     public static final String DEVICES_LOGS_TOPIC = DEVICES_TOPIC + "/logs";
-    private final Logger log = LoggerFactory.getLogger("device-logs");
+    // rough size of message object with its fields, besides text
+    private static final int ENTRY_OVERHEAD = 96;
+    private static final Level[] LEVELS = Level.values();
 
-    private final ConcurrentLinkedDeque<DeviceLoggerMessage> logsCache = new ConcurrentLinkedDeque<>();
+    private final Logger log = LoggerFactory.getLogger("device-logs");
 
     @Value("${device.logs.cache.size:200}")
     private int cacheSize;
+    @Value("${device.logs.cache.max-bytes:4194304}")
+    private long maxBytes;
     @Value("${device.logs.level:INFO}")
     private Level logLevel;
 
-    public List<DeviceLoggerMessage> getLogs(DeviceLogsFilter filter) {
-        Stream<DeviceLoggerMessage> messageStream = logsCache.stream();
-        if (filter == null || filter.isEmpty()) {
-            return messageStream.toList();
+    private AtomicLongArray sequences;
+    private LocalDateTime[] dateTimes;
+    private DeviceInfo[] devices;
+    private Level[] levels;
+    private String[] tags;
+    private String[] messages;
+    private String[] lowerMessages;
+    private DeviceLogSource[] sources;
+    private Key[] deviceKeys;
+    private Key[] tagKeys;
+    private int[] sizes;
+
+    // sequence of the newest message, and of the oldest one still in cache
+    private volatile long latest;
+    private volatile long oldest = 1;
+    // written by logs processor thread only
+    private long bytes;
+
+    // guards indexes, but not messages
+    private final ReadWriteLock indexLock = new ReentrantReadWriteLock();
+    // by lowercased name + ip, as device filter matches it
+    private final Map<String, Key> deviceIndex = new HashMap<>();
+    private final Map<String, Key> tagIndex = new HashMap<>();
+    private final Postings[] levelIndex = new Postings[LEVELS.length];
+
+    @PostConstruct
+    public void init() {
+        cacheSize = Math.max(1, cacheSize);
+        sequences = new AtomicLongArray(cacheSize);
+        dateTimes = new LocalDateTime[cacheSize];
+        devices = new DeviceInfo[cacheSize];
+        levels = new Level[cacheSize];
+        tags = new String[cacheSize];
+        messages = new String[cacheSize];
+        lowerMessages = new String[cacheSize];
+        sources = new DeviceLogSource[cacheSize];
+        deviceKeys = new Key[cacheSize];
+        tagKeys = new Key[cacheSize];
+        sizes = new int[cacheSize];
+        for (int i = 0; i < levelIndex.length; i++) {
+            levelIndex[i] = new Postings();
         }
-        return messageStream.filter(message -> {
-            if (filter.getLevel() != null && message.getLevel().toInt() < filter.getLevel().toInt()) {
-                return false;
+    }
+
+    /**
+     * Cached messages matching filter, the newest first
+     * @param after only messages with greater sequence
+     * @param before only messages with lower sequence, 0 for no bound
+     * @param limit max messages count, 0 for no limit
+     */
+    public DeviceLogsPage getLogs(DeviceLogsFilter filter, long after, long before, int limit) {
+        long newest = latest;
+        long to = before > 0 ? Math.min(before - 1, newest) : newest;
+        long from = Math.max(after + 1, oldest);
+        Query query = query(filter, from, to);
+
+        List<DeviceLoggerMessage> result = new ArrayList<>();
+        long lastReturned = 0;
+        Long next = null;
+        int count = query.candidates == null ? (int) Math.max(0, to - from + 1) : query.candidates.length;
+        for (int i = 0; i < count; i++) {
+            long seq = query.candidates == null ? to - i : query.candidates[count - 1 - i];
+            int slot = slot(seq);
+            if (sequences.getAcquire(slot) != seq) {
+                break;
             }
-            if (StringUtils.isNotBlank(filter.getMessage()) && !StringUtils.contains(message.getMessage().toLowerCase(), filter.getMessage())) {
-                return false;
+            Level level = levels[slot];
+            Key deviceKey = deviceKeys[slot];
+            Key tagKey = tagKeys[slot];
+            String lowerMessage = lowerMessages[slot];
+            if (level == null || lowerMessage == null) {
+                // evicted while reading
+                break;
             }
-            if (StringUtils.isNotBlank(filter.getTag()) && !StringUtils.contains(message.getTag().toLowerCase(), filter.getTag())) {
-                return false;
+            DeviceLoggerMessage message = null;
+            boolean matches = query.matches(level, deviceKey, tagKey, lowerMessage);
+            if (matches && (limit <= 0 || result.size() < limit)) {
+                message = new DeviceLoggerMessage(
+                        dateTimes[slot], devices[slot], level, tags[slot], messages[slot], sources[slot]
+                );
             }
-            if (StringUtils.isBlank(filter.getDevice())) {
-                return true;
+            VarHandle.loadLoadFence();
+            if (sequences.get(slot) != seq) {
+                // overwritten while reading, so are all older ones
+                break;
             }
-            String dev = message.getDevice().getName() + message.getDevice().getIp();
-            return StringUtils.contains(dev.toLowerCase(), filter.getDevice());
-        }).toList();
+            if (!matches) {
+                continue;
+            }
+            if (message == null) {
+                // there is at least one more message, next page starts before the last returned one
+                next = lastReturned;
+                break;
+            }
+            result.add(message);
+            lastReturned = seq;
+        }
+        return new DeviceLogsPage(result, newest, next);
     }
 
     @Override
     public void accept(DeviceLoggerMessage message) {
         // todo move from here?
         log.atLevel(message.getLevel()).log(message.toString());
-        if (logsCache.size() > cacheSize) {
-            logsCache.remove();
+
+        long seq = latest + 1;
+        String lowerMessage = StringUtils.defaultString(message.getMessage()).toLowerCase();
+        int size = size(message, lowerMessage);
+        String deviceText = message.getDevice() == null
+                ? ""
+                : (StringUtils.defaultString(message.getDevice().getName()) + StringUtils.defaultString(message.getDevice().getIp())).toLowerCase();
+        String tagText = StringUtils.defaultString(message.getTag()).toLowerCase();
+
+        indexLock.writeLock().lock();
+        try {
+            long first = oldest;
+            while (first < seq && (seq - first >= cacheSize || bytes + size > maxBytes)) {
+                int evicted = slot(first);
+                bytes -= sizes[evicted];
+                unindex(deviceIndex, deviceKeys[evicted]);
+                unindex(tagIndex, tagKeys[evicted]);
+                levelIndex[levels[evicted].ordinal()].removeFirst();
+                clear(evicted);
+                first++;
+            }
+            oldest = first;
+
+            Key deviceKey = deviceIndex.computeIfAbsent(deviceText, Key::new);
+            Key tagKey = tagIndex.computeIfAbsent(tagText, Key::new);
+            deviceKey.postings.add(seq);
+            tagKey.postings.add(seq);
+            levelIndex[message.getLevel().ordinal()].add(seq);
+
+            int slot = slot(seq);
+            sequences.set(slot, 0);
+            VarHandle.storeStoreFence();
+            dateTimes[slot] = message.getDateTime();
+            devices[slot] = message.getDevice();
+            levels[slot] = message.getLevel();
+            tags[slot] = message.getTag();
+            messages[slot] = message.getMessage();
+            lowerMessages[slot] = lowerMessage;
+            sources[slot] = message.getSource();
+            deviceKeys[slot] = deviceKey;
+            tagKeys[slot] = tagKey;
+            sizes[slot] = size;
+            sequences.setRelease(slot, seq);
+            bytes += size;
+            latest = seq;
+        } finally {
+            indexLock.writeLock().unlock();
+        }
+    }
+
+    // Picks the smallest index for the filter and collects its sequences between from and to
+    private Query query(DeviceLogsFilter filter, long from, long to) {
+        Query query = new Query();
+        if (filter == null || filter.isEmpty() || from > to) {
+            return query;
+        }
+        query.message = StringUtils.isNotBlank(filter.getMessage()) ? filter.getMessage() : null;
+        query.level = filter.getLevel();
+
+        indexLock.readLock().lock();
+        try {
+            List<Postings> smallest = null;
+            long smallestSize = Long.MAX_VALUE;
+            if (StringUtils.isNotBlank(filter.getDevice())) {
+                query.devices = matchingKeys(deviceIndex, filter.getDevice());
+                List<Postings> postings = query.devices.stream().map((key) -> key.postings).toList();
+                long size = size(postings);
+                if (size < smallestSize) {
+                    smallest = postings;
+                    smallestSize = size;
+                }
+            }
+            if (StringUtils.isNotBlank(filter.getTag())) {
+                query.tags = matchingKeys(tagIndex, filter.getTag());
+                List<Postings> postings = query.tags.stream().map((key) -> key.postings).toList();
+                long size = size(postings);
+                if (size < smallestSize) {
+                    smallest = postings;
+                    smallestSize = size;
+                }
+            }
+            if (query.level != null) {
+                List<Postings> postings = new ArrayList<>();
+                for (Level level : LEVELS) {
+                    if (level.toInt() >= query.level.toInt()) {
+                        postings.add(levelIndex[level.ordinal()]);
+                    }
+                }
+                if (size(postings) < smallestSize) {
+                    smallest = postings;
+                }
+            }
+            if (smallest == null) {
+                // message text only, every message is checked anyway
+                return query;
+            }
+
+            long[] candidates = new long[(int) Math.min(size(smallest), to - from + 1)];
+            int count = 0;
+            for (Postings postings : smallest) {
+                for (int i = postings.size - 1; i >= 0; i--) {
+                    long seq = postings.get(i);
+                    if (seq < from) {
+                        break;
+                    }
+                    if (seq <= to) {
+                        candidates[count++] = seq;
+                    }
+                }
+            }
+            query.candidates = Arrays.copyOf(candidates, count);
+            Arrays.sort(query.candidates);
+            return query;
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+
+    // drops references of evicted message, so it doesn't stay in memory until slot is reused
+    private void clear(int slot) {
+        sequences.set(slot, 0);
+        VarHandle.storeStoreFence();
+        dateTimes[slot] = null;
+        devices[slot] = null;
+        levels[slot] = null;
+        tags[slot] = null;
+        messages[slot] = null;
+        lowerMessages[slot] = null;
+        sources[slot] = null;
+        deviceKeys[slot] = null;
+        tagKeys[slot] = null;
+        sizes[slot] = 0;
+    }
+
+    private int slot(long seq) {
+        return (int) (seq % cacheSize);
+    }
+
+    private static Set<Key> matchingKeys(Map<String, Key> index, String filter) {
+        Set<Key> keys = new HashSet<>();
+        for (Key key : index.values()) {
+            if (key.text.contains(filter)) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    private static void unindex(Map<String, Key> index, Key key) {
+        key.postings.removeFirst();
+        if (key.postings.size == 0) {
+            index.remove(key.text, key);
+        }
+    }
+
+    private static long size(List<Postings> postings) {
+        long size = 0;
+        for (Postings value : postings) {
+            size += value.size;
+        }
+        return size;
+    }
+
+    private static int size(DeviceLoggerMessage message, String lowerMessage) {
+        int text = StringUtils.length(message.getMessage()) + StringUtils.length(message.getTag());
+        if (lowerMessage != message.getMessage()) {
+            text += lowerMessage.length();
+        }
+        return ENTRY_OVERHEAD + 2 * text;
+    }
+
+    private static class Query {
+        // ascending sequences to read, or null to read all from newest to oldest
+        private long[] candidates;
+        private Set<Key> devices;
+        private Set<Key> tags;
+        private Level level;
+        private String message;
+
+        private boolean matches(Level level, Key device, Key tag, String lowerMessage) {
+            return (this.level == null || level.toInt() >= this.level.toInt())
+                    && (devices == null || devices.contains(device))
+                    && (tags == null || tags.contains(tag))
+                    && (message == null || lowerMessage.contains(message));
+        }
+    }
+
+    private static class Key {
+        private final String text;
+        // sequences of cached messages with this key, ascending
+        private final Postings postings = new Postings();
+
+        private Key(String text) {
+            this.text = text;
+        }
+    }
+
+    // Growable ring of ascending sequences, added at the end and removed from the start
+    private static class Postings {
+        private long[] values = new long[8];
+        private int head;
+        private int size;
+
+        private void add(long value) {
+            if (size == values.length) {
+                long[] grown = new long[values.length * 2];
+                for (int i = 0; i < size; i++) {
+                    grown[i] = get(i);
+                }
+                values = grown;
+                head = 0;
+            }
+            values[(head + size) & (values.length - 1)] = value;
+            size++;
+        }
+
+        private long get(int index) {
+            return values[(head + index) & (values.length - 1)];
+        }
+
+        private void removeFirst() {
+            head = (head + 1) & (values.length - 1);
+            size--;
         }
-        logsCache.addFirst(message);
     }
 }
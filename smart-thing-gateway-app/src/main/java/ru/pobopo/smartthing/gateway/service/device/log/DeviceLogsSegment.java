@@ -0,0 +1,425 @@
+package ru.pobopo.smartthing.gateway.service.device.log;
+
+import org.slf4j.event.Level;
+import ru.pobopo.smartthing.model.DeviceLogSource;
+import ru.pobopo.smartthing.model.DeviceLoggerMessage;
+import ru.pobopo.smartthing.model.device.DeviceInfo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Append only file of device log records. The segment being written is memory mapped whole,
+ * readers use positional reads of the file channel, so the mapping is used by the writer only
+ * and is released right when the segment is sealed. Sealed segments hold no mapping,
+ * and file space is freed as soon as they are deleted.
+ * Record: int length (of whole record), long sequence, long time millis, byte level, byte source,
+ * then ip, name, tag as short length + utf-8 bytes and message as int length + utf-8 bytes (length -1 for null).
+ * Length is written after the rest of record, so reader never counts a record which is still being written.
+ * Mapped pages aren't written to disk in order though, so after a crash the tail of segment may hold torn records:
+ * on start records are checked (field sizes, level, source, consecutive sequence) and scan stops at the first bad one.
+ * Records are grouped into blocks of about {@link #BLOCK_SIZE} bytes, and sparse index keeps
+ * offset, first sequence and time range of every block, so readers skip blocks out of requested range.
+ * Written by one thread, read by any.
+ */
+class DeviceLogsSegment {
+    static final String EXTENSION = ".seg";
+    static final int BLOCK_SIZE = 4096;
+    private static final int HEADER_SIZE = 4 + 8 + 8 + 1 + 1;
+    // header and lengths of empty strings
+    private static final int MIN_RECORD_SIZE = HEADER_SIZE + 2 + 2 + 2 + 4;
+    private static final int SCAN_CHUNK = 64 * 1024;
+    private static final Level[] LEVELS = Level.values();
+    private static final DeviceLogSource[] SOURCES = DeviceLogSource.values();
+    private static final ZoneId ZONE = ZoneId.systemDefault();
+
+    private final Path path;
+    private final long firstSequence;
+    private final FileChannel channel;
+    private final int capacity;
+    // null after segment is sealed
+    private volatile MappedByteBuffer buffer;
+
+    // sparse index, block i starts at offsets[i]
+    private final int[] offsets;
+    private final long[] sequences;
+    private final long[] minTimes;
+    private final long[] maxTimes;
+    private volatile int blocks;
+    // end of written records, readers don't go further
+    private volatile int end;
+    private volatile long lastSequence;
+    private volatile long minTime = Long.MAX_VALUE;
+    private volatile long maxTime = Long.MIN_VALUE;
+
+    private DeviceLogsSegment(Path path, long firstSequence, FileChannel channel, int capacity) {
+        this.path = path;
+        this.firstSequence = firstSequence;
+        this.channel = channel;
+        this.capacity = capacity;
+        int maxBlocks = capacity / BLOCK_SIZE + 2;
+        this.offsets = new int[maxBlocks];
+        this.sequences = new long[maxBlocks];
+        this.minTimes = new long[maxBlocks];
+        this.maxTimes = new long[maxBlocks];
+        this.lastSequence = firstSequence - 1;
+    }
+
+    static DeviceLogsSegment create(Path directory, long firstSequence, int size) throws IOException {
+        Path path = directory.resolve(String.format("%020d%s", firstSequence, EXTENSION));
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        DeviceLogsSegment segment = new DeviceLogsSegment(path, firstSequence, channel, size);
+        segment.map();
+        return segment;
+    }
+
+    /**
+     * Opens existing segment and restores its index by reading all records
+     * @param writable map the segment to append to it, otherwise it's opened sealed
+     */
+    static DeviceLogsSegment open(Path path, boolean writable) throws IOException {
+        String name = path.getFileName().toString();
+        long firstSequence = Long.parseLong(name.substring(0, name.length() - EXTENSION.length()));
+        FileChannel channel = writable
+                ? FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            DeviceLogsSegment segment = new DeviceLogsSegment(path, firstSequence, channel, (int) channel.size());
+            segment.scan();
+            if (writable) {
+                segment.map();
+            }
+            return segment;
+        } catch (IOException | RuntimeException exception) {
+            channel.close();
+            throw exception;
+        }
+    }
+
+    private void map() throws IOException {
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    // Reads records chunk by chunk to find the end of valid data and fill the index
+    private void scan() throws IOException {
+        ByteBuffer chunk = ByteBuffer.allocate(SCAN_CHUNK);
+        chunk.limit(0);
+        int chunkStart = 0;
+        int position = 0;
+        while (position + MIN_RECORD_SIZE <= capacity) {
+            if (position + HEADER_SIZE > chunkStart + chunk.limit()) {
+                chunkStart = position;
+                load(chunk, position);
+                if (chunk.limit() < HEADER_SIZE) {
+                    break;
+                }
+            }
+            int length = chunk.getInt(position - chunkStart);
+            if (length < MIN_RECORD_SIZE || length > capacity - position) {
+                break;
+            }
+            if (position + length > chunkStart + chunk.limit()) {
+                if (length > chunk.capacity()) {
+                    chunk = ByteBuffer.allocate(length);
+                }
+                chunkStart = position;
+                load(chunk, position);
+                if (chunk.limit() < length) {
+                    break;
+                }
+            }
+            int offset = position - chunkStart;
+            long sequence = chunk.getLong(offset + 4);
+            if (sequence != lastSequence + 1 || !isValid(chunk, offset, length)) {
+                break;
+            }
+            index(position, sequence, chunk.getLong(offset + 12));
+            position += length;
+            end = position;
+        }
+    }
+
+    private void load(ByteBuffer chunk, int position) throws IOException {
+        chunk.clear();
+        read(chunk, position);
+        chunk.flip();
+    }
+
+    // Fills the buffer from file, starting at position, unless file ends earlier
+    private void read(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * @return false if record doesn't fit into the segment
+     */
+    boolean append(long sequence, DeviceLoggerMessage message) {
+        MappedByteBuffer buffer = this.buffer;
+        byte[] ip = shortBytes(message.getDevice() == null ? null : message.getDevice().getIp());
+        byte[] name = shortBytes(message.getDevice() == null ? null : message.getDevice().getName());
+        byte[] tag = shortBytes(message.getTag());
+        byte[] text = message.getMessage() == null ? null : message.getMessage().getBytes(StandardCharsets.UTF_8);
+        int length = HEADER_SIZE + 2 + size(ip) + 2 + size(name) + 2 + size(tag) + 4 + size(text);
+        int position = end;
+        if (length > buffer.capacity() - position) {
+            return false;
+        }
+
+        long time = message.getDateTime() == null
+                ? System.currentTimeMillis()
+                : message.getDateTime().atZone(ZONE).toInstant().toEpochMilli();
+        int offset = position + 4;
+        buffer.putLong(offset, sequence);
+        buffer.putLong(offset + 8, time);
+        buffer.put(offset + 16, (byte) (message.getLevel() == null ? Level.INFO : message.getLevel()).ordinal());
+        buffer.put(offset + 17, (byte) (message.getSource() == null ? -1 : message.getSource().ordinal()));
+        offset += 18;
+        offset = putShortString(buffer, offset, ip);
+        offset = putShortString(buffer, offset, name);
+        offset = putShortString(buffer, offset, tag);
+        buffer.putInt(offset, text == null ? -1 : text.length);
+        if (text != null) {
+            buffer.put(offset + 4, text);
+        }
+        // record becomes visible for recovery only now
+        buffer.putInt(position, length);
+
+        index(position, sequence, time);
+        end = position + length;
+        return true;
+    }
+
+    /**
+     * Reads records of the block, which match the predicate, oldest first
+     * @param predicate checks sequence, time and level of record before the rest is decoded
+     */
+    void read(int block, RecordFilter predicate, Predicate<DeviceLoggerMessage> filter, List<Record> result) throws IOException {
+        int limit = end;
+        int start = offsets[block];
+        int blockEnd = block + 1 < blocks ? offsets[block + 1] : limit;
+        if (blockEnd <= start) {
+            return;
+        }
+        ByteBuffer view = ByteBuffer.allocate(blockEnd - start);
+        read(view, start);
+        if (view.hasRemaining()) {
+            return;
+        }
+        int position = 0;
+        while (position + MIN_RECORD_SIZE <= view.capacity()) {
+            int length = view.getInt(position);
+            if (length < MIN_RECORD_SIZE || length > view.capacity() - position) {
+                break;
+            }
+            if (!isValid(view, position, length)) {
+                position += length;
+                continue;
+            }
+            long sequence = view.getLong(position + 4);
+            long time = view.getLong(position + 12);
+            Level level = LEVELS[view.get(position + 20)];
+            if (predicate.test(sequence, time, level)) {
+                int offset = position + 22;
+                String ip = getShortString(view, offset);
+                offset += 2 + Math.max(0, view.getShort(offset));
+                String name = getShortString(view, offset);
+                offset += 2 + Math.max(0, view.getShort(offset));
+                String tag = getShortString(view, offset);
+                offset += 2 + Math.max(0, view.getShort(offset));
+                String text = getString(view, offset + 4, view.getInt(offset));
+                byte source = view.get(position + 21);
+                DeviceLoggerMessage message = new DeviceLoggerMessage(
+                        LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZONE),
+                        new DeviceInfo(ip, name),
+                        level,
+                        tag,
+                        text,
+                        source < 0 ? null : SOURCES[source]
+                );
+                if (filter.test(message)) {
+                    result.add(new Record(sequence, message));
+                }
+            }
+            position += length;
+        }
+    }
+
+    // Checks that level and source are known and all fields fit exactly into the record
+    private static boolean isValid(ByteBuffer buffer, int position, int length) {
+        int level = buffer.get(position + 20);
+        int source = buffer.get(position + 21);
+        if (level < 0 || level >= LEVELS.length || source < -1 || source >= SOURCES.length) {
+            return false;
+        }
+        int recordEnd = position + length;
+        int offset = position + HEADER_SIZE;
+        for (int i = 0; i < 3; i++) {
+            if (offset + 2 > recordEnd) {
+                return false;
+            }
+            int size = buffer.getShort(offset);
+            if (size < -1) {
+                return false;
+            }
+            offset += 2 + Math.max(0, size);
+        }
+        if (offset + 4 > recordEnd) {
+            return false;
+        }
+        int size = buffer.getInt(offset);
+        return size >= -1 && offset + 4 + Math.max(0, size) == recordEnd;
+    }
+
+    synchronized void force() {
+        if (buffer != null) {
+            buffer.force();
+        }
+    }
+
+    /**
+     * Flushes segment and drops its mapping, it's only read through channel after that.
+     * Mapping is released by gc, there is at most one such buffer per rolled segment.
+     * Called by writer thread, which doesn't append to it anymore
+     */
+    synchronized void seal() {
+        MappedByteBuffer mapped = buffer;
+        if (mapped == null) {
+            return;
+        }
+        mapped.force();
+        buffer = null;
+    }
+
+    // mapping of segment being written stays valid after channel is closed, it's left to gc
+    void close() throws IOException {
+        channel.close();
+    }
+
+    boolean delete() throws IOException {
+        close();
+        return Files.deleteIfExists(path);
+    }
+
+    int getBlocks() {
+        return blocks;
+    }
+
+    long getBlockSequence(int block) {
+        return sequences[block];
+    }
+
+    boolean blockOverlaps(int block, long from, long to) {
+        return minTimes[block] <= to && maxTimes[block] >= from;
+    }
+
+    boolean overlaps(long from, long to) {
+        return minTime <= to && maxTime >= from;
+    }
+
+    long getFirstSequence() {
+        return firstSequence;
+    }
+
+    long getLastSequence() {
+        return lastSequence;
+    }
+
+    long getMaxTime() {
+        return maxTime;
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    boolean isSealed() {
+        return buffer == null;
+    }
+
+    boolean isEmpty() {
+        return end == 0;
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    // block stats are updated before end is moved, so readers never see records out of index
+    private void index(int position, long sequence, long time) {
+        int block = blocks - 1;
+        if (block < 0 || position - offsets[block] >= BLOCK_SIZE) {
+            block++;
+            offsets[block] = position;
+            sequences[block] = sequence;
+            minTimes[block] = time;
+            maxTimes[block] = time;
+            blocks = block + 1;
+        } else {
+            minTimes[block] = Math.min(minTimes[block], time);
+            maxTimes[block] = Math.max(maxTimes[block], time);
+        }
+        minTime = Math.min(minTime, time);
+        maxTime = Math.max(maxTime, time);
+        lastSequence = sequence;
+    }
+
+    private static int putShortString(ByteBuffer buffer, int offset, byte[] value) {
+        if (value == null) {
+            buffer.putShort(offset, (short) -1);
+            return offset + 2;
+        }
+        buffer.putShort(offset, (short) value.length);
+        buffer.put(offset + 2, value);
+        return offset + 2 + value.length;
+    }
+
+    private static String getShortString(ByteBuffer buffer, int offset) {
+        return getString(buffer, offset + 2, buffer.getShort(offset));
+    }
+
+    private static String getString(ByteBuffer buffer, int offset, int length) {
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(offset, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] shortBytes(String value) {
+        if (value == null) {
+            return null;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        // ip, name and tag lengths are stored as short
+        return bytes.length > Short.MAX_VALUE ? Arrays.copyOf(bytes, Short.MAX_VALUE) : bytes;
+    }
+
+    private static int size(byte[] value) {
+        return value == null ? 0 : value.length;
+    }
+
+    @FunctionalInterface
+    interface RecordFilter {
+        boolean test(long sequence, long time, Level level);
+    }
+
+    record Record(long sequence, DeviceLoggerMessage message) {
+    }
+}
@@ -0,0 +1,255 @@
+package ru.pobopo.smartthing.gateway.service.device.log;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import ru.pobopo.smartthing.consumers.DeviceLogsConsumer;
+import ru.pobopo.smartthing.gateway.model.logs.DeviceLogsFilter;
+import ru.pobopo.smartthing.gateway.model.logs.DeviceLogsPage;
+import ru.pobopo.smartthing.model.DeviceLoggerMessage;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+import static ru.pobopo.smartthing.gateway.SmartThingGatewayApp.DEFAULT_APP_DIR;
+
+/**
+ * Keeps device logs on disk, in segment files of fixed size (see {@link DeviceLogsSegment}).
+ * Messages are appended by logs processor thread to the last segment, new one is started when it's full.
+ * The oldest segments are deleted when all segments take more than max size, or when their newest message
+ * is older than max age. Segment indexes are restored by reading segments on start.
+ * Queries go from the newest segment to the oldest and read only blocks, which may have messages from requested range.
+ */
+@Slf4j
+@Service
+public class DeviceLogsStore implements DeviceLogsConsumer {
+    private static final Path DEFAULT_DIR = Paths.get(DEFAULT_APP_DIR.toString(), "device_logs");
+    private static final ZoneId ZONE = ZoneId.systemDefault();
+
+    @Value("${device.logs.store.enabled:false}")
+    private boolean enabled;
+    @Value("${device.logs.store.dir:}")
+    private String dir;
+    @Value("${device.logs.store.segment-size:16777216}")
+    private int segmentSize;
+    @Value("${device.logs.store.max-size:268435456}")
+    private long maxSize;
+    @Value("${device.logs.store.max-age:604800000}")
+    private long maxAge;
+    @Value("${device.logs.store.max-results:1000}")
+    private int maxResults;
+
+    private Path directory;
+    // ordered by first sequence, the last one is written
+    private final List<DeviceLogsSegment> segments = new CopyOnWriteArrayList<>();
+    // the last segment, set only by the thread appending messages (or on init)
+    private volatile DeviceLogsSegment current;
+    private volatile long latest;
+
+    @PostConstruct
+    public void init() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        segmentSize = Math.max(DeviceLogsSegment.BLOCK_SIZE, segmentSize);
+        directory = StringUtils.isBlank(dir) ? DEFAULT_DIR : Paths.get(dir);
+        Files.createDirectories(directory);
+
+        List<Path> files;
+        try (Stream<Path> stream = Files.list(directory)) {
+            // names are zero padded first sequences, so they sort by sequence
+            files = stream.filter((file) -> file.getFileName().toString().endsWith(DeviceLogsSegment.EXTENSION))
+                    .sorted()
+                    .toList();
+        }
+        for (int i = 0; i < files.size(); i++) {
+            Path file = files.get(i);
+            try {
+                segments.add(DeviceLogsSegment.open(file, i == files.size() - 1));
+            } catch (IOException | NumberFormatException exception) {
+                log.error("Failed to open device logs segment {}: {}", file, exception.getMessage());
+            }
+        }
+        if (segments.isEmpty() || segments.get(segments.size() - 1).isSealed()) {
+            long first = segments.isEmpty() ? 1 : segments.get(segments.size() - 1).getLastSequence() + 1;
+            segments.add(DeviceLogsSegment.create(directory, first, segmentSize));
+        }
+        current = segments.get(segments.size() - 1);
+        latest = current.getLastSequence();
+        log.info("Device logs store {}: {} segments, last sequence {}", directory, segments.size(), latest);
+    }
+
+    @Override
+    public void accept(DeviceLoggerMessage message) {
+        if (!enabled || message == null) {
+            return;
+        }
+        long seq = latest + 1;
+        DeviceLogsSegment segment = current;
+        if (!segment.append(seq, message)) {
+            if (segment.isEmpty()) {
+                log.warn("Device log message is bigger than segment size, skipping it");
+                return;
+            }
+            segment = roll(segment, seq);
+            if (segment == null || !segment.append(seq, message)) {
+                return;
+            }
+        }
+        latest = seq;
+    }
+
+    /**
+     * Stored messages matching filter, the newest first
+     * @param from only messages not older than this, null for no bound
+     * @param to only messages not newer than this, null for no bound
+     * @param after only messages with greater sequence
+     * @param before only messages with lower sequence, 0 for no bound
+     * @param limit max messages count, 0 or greater than max results for max results
+     */
+    public DeviceLogsPage getLogs(DeviceLogsFilter filter, LocalDateTime from, LocalDateTime to, long after, long before, int limit) {
+        long newest = latest;
+        long fromTime = from == null ? Long.MIN_VALUE : from.atZone(ZONE).toInstant().toEpochMilli();
+        long toTime = to == null ? Long.MAX_VALUE : to.atZone(ZONE).toInstant().toEpochMilli();
+        long lastSeq = before > 0 ? Math.min(before - 1, newest) : newest;
+        int maxCount = limit <= 0 ? maxResults : Math.min(limit, maxResults);
+
+        DeviceLogsSegment.RecordFilter recordFilter = (seq, time, level) -> seq > after && seq <= lastSeq
+                && time >= fromTime && time <= toTime
+                && (filter == null || filter.getLevel() == null || level.toInt() >= filter.getLevel().toInt());
+        Predicate<DeviceLoggerMessage> messageFilter = messageFilter(filter);
+
+        List<DeviceLoggerMessage> result = new ArrayList<>();
+        List<DeviceLogsSegment.Record> block = new ArrayList<>();
+        long lastReturned = 0;
+        // retention may remove segments meanwhile, so walk over a copy
+        DeviceLogsSegment[] snapshot = segments.toArray(new DeviceLogsSegment[0]);
+        for (int s = snapshot.length - 1; s >= 0; s--) {
+            DeviceLogsSegment segment = snapshot[s];
+            if (segment.getFirstSequence() > lastSeq || segment.isEmpty() || !segment.overlaps(fromTime, toTime)) {
+                continue;
+            }
+            if (segment.getLastSequence() <= after) {
+                break;
+            }
+            for (int b = segment.getBlocks() - 1; b >= 0; b--) {
+                if (segment.getBlockSequence(b) > lastSeq || !segment.blockOverlaps(b, fromTime, toTime)) {
+                    continue;
+                }
+                block.clear();
+                try {
+                    segment.read(b, recordFilter, messageFilter, block);
+                } catch (IOException exception) {
+                    // segment was deleted by retention while reading
+                    log.debug("Failed to read device logs segment {}: {}", segment.getPath(), exception.getMessage());
+                    break;
+                }
+                for (int i = block.size() - 1; i >= 0; i--) {
+                    if (result.size() >= maxCount) {
+                        // there is at least one more message, next page starts before the last returned one
+                        return new DeviceLogsPage(result, newest, lastReturned);
+                    }
+                    result.add(block.get(i).message());
+                    lastReturned = block.get(i).sequence();
+                }
+                if (segment.getBlockSequence(b) <= after + 1) {
+                    return new DeviceLogsPage(result, newest, null);
+                }
+            }
+        }
+        return new DeviceLogsPage(result, newest, null);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Scheduled(fixedDelayString = "${device.logs.store.flush-interval:5000}")
+    public void flush() {
+        DeviceLogsSegment segment = current;
+        if (!enabled || segment == null) {
+            return;
+        }
+        segment.force();
+    }
+
+    @Scheduled(fixedDelayString = "${device.logs.store.retention-interval:60000}")
+    public void retention() {
+        if (!enabled) {
+            return;
+        }
+        long size = segments.stream().mapToLong(DeviceLogsSegment::getCapacity).sum();
+        long minTime = System.currentTimeMillis() - maxAge;
+        // only this thread removes segments, and the one being written stays
+        while (segments.size() > 1) {
+            DeviceLogsSegment oldest = segments.get(0);
+            if (oldest == current) {
+                break;
+            }
+            boolean expired = maxAge > 0 && oldest.getMaxTime() < minTime;
+            if (!expired && size <= maxSize) {
+                break;
+            }
+            segments.remove(oldest);
+            size -= oldest.getCapacity();
+            try {
+                oldest.delete();
+                log.info("Deleted device logs segment {} ({})", oldest.getPath(), expired ? "expired" : "size limit");
+            } catch (IOException exception) {
+                log.error("Failed to delete device logs segment {}: {}", oldest.getPath(), exception.getMessage());
+            }
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        flush();
+        for (DeviceLogsSegment segment : segments) {
+            try {
+                segment.close();
+            } catch (IOException exception) {
+                log.error("Failed to close device logs segment {}: {}", segment.getPath(), exception.getMessage());
+            }
+        }
+    }
+
+    private DeviceLogsSegment roll(DeviceLogsSegment full, long seq) {
+        full.seal();
+        try {
+            DeviceLogsSegment segment = DeviceLogsSegment.create(directory, seq, segmentSize);
+            segments.add(segment);
+            current = segment;
+            return segment;
+        } catch (IOException exception) {
+            log.error("Failed to create device logs segment: {}", exception.getMessage());
+            return null;
+        }
+    }
+
+    // The same conditions as in logs cache, filter values are lowercased already
+    private static Predicate<DeviceLoggerMessage> messageFilter(DeviceLogsFilter filter) {
+        if (filter == null || filter.isEmpty()) {
+            return (message) -> true;
+        }
+        String device = StringUtils.isNotBlank(filter.getDevice()) ? filter.getDevice() : null;
+        String tag = StringUtils.isNotBlank(filter.getTag()) ? filter.getTag() : null;
+        String text = StringUtils.isNotBlank(filter.getMessage()) ? filter.getMessage() : null;
+        return (message) -> (device == null || (StringUtils.defaultString(message.getDevice().getName())
+                        + StringUtils.defaultString(message.getDevice().getIp())).toLowerCase().contains(device))
+                && (tag == null || StringUtils.defaultString(message.getTag()).toLowerCase().contains(tag))
+                && (text == null || StringUtils.defaultString(message.getMessage()).toLowerCase().contains(text));
+    }
+}
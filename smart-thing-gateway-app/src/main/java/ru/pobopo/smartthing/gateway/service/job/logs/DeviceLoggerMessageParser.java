@@ -1,55 +1,315 @@
 package ru.pobopo.smartthing.gateway.service.job.logs;
 
-import org.apache.commons.lang3.StringUtils;
 import org.slf4j.event.Level;
-import org.springframework.stereotype.Component;
 import ru.pobopo.smartthing.model.DeviceLogSource;
 import ru.pobopo.smartthing.model.DeviceLoggerMessage;
 import ru.pobopo.smartthing.model.device.DeviceInfo;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Arrays;
 
-@Component
+/**
+ * Parses device log lines: {@code name&level&tag&message} from tcp and {@code ip&name&level&tag&message} from multicast.
+ * Single right to left pass over utf-8 bytes, which gives the same fields as greedy regex
+ * {@code (.+)&(\d+)&(.+)&(.+)\Z} (and the one with ip group) found in decoded line:
+ * only the last line counts (final line break is ignored), first fields take as much as they can,
+ * and message is everything after the last {@code &}.
+ * Device infos and tags are cached, so message text is the only string created per line.
+ * Not thread safe, every receiving thread should use its own parser.
+ */
 public class DeviceLoggerMessageParser {
-    private final static String GROUP_IP = "ip";
-    private final static String GROUP_NAME = "name";
-    private final static String GROUP_LEVEL = "level";
-    private final static String GROUP_TAG = "tag";
-    private final static String GROUP_MESSAGE = "message";
-
-    private final static Pattern tcpPattern = Pattern.compile(
-            "(?<" + GROUP_NAME + ">.+)[&](?<" + GROUP_LEVEL + ">\\d+)[&](?<" + GROUP_TAG + ">.+)[&](?<" + GROUP_MESSAGE + ">.+)\\Z"
-    );
-    private final static Pattern multicastPattern = Pattern.compile(
-            "(?<" + GROUP_IP + ">.+)[&](?<" + GROUP_NAME + ">.+)[&](?<" + GROUP_LEVEL + ">\\d+)[&](?<" + GROUP_TAG + ">.+)[&](?<" + GROUP_MESSAGE + ">.+)\\Z"
-    );
+    private static final byte SEPARATOR = '&';
+    private static final int CACHE_SIZE = 1024;
+
+    private final KeyCache<DeviceInfo> devices = new KeyCache<>(CACHE_SIZE);
+    private final KeyCache<String> tags = new KeyCache<>(CACHE_SIZE);
+    private byte[] chars = new byte[256];
+
+    // ip of last tcp line, the same string for all lines of connection
+    private String lastIp;
+    private ByteBuffer lastIpBytes;
+
+    private long timeMillis;
+    private LocalDateTime time;
 
     public DeviceLoggerMessage parse(DeviceLogSource source, String message, String ip) {
-        if (StringUtils.isBlank(message) || source == null) {
+        if (message == null) {
+            return null;
+        }
+        return parse(source, ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)), ip);
+    }
+
+    /**
+     * @param line utf-8 line between position and limit, buffer position isn't changed
+     * @param ip device address for tcp lines, multicast lines have it inside
+     * @return parsed message or null if line doesn't match the format
+     */
+    public DeviceLoggerMessage parse(DeviceLogSource source, ByteBuffer line, String ip) {
+        if (line == null || source == null) {
             return null;
         }
+        boolean multicast = source == DeviceLogSource.MULTICAST;
+        int start = line.position();
+        int end = line.limit() - terminatorBefore(line, start, line.limit());
 
-        Matcher matcher = null;
-        switch (source) {
-            case TCP -> matcher = tcpPattern.matcher(message);
-            case MULTICAST -> matcher = multicastPattern.matcher(message);
+        // separators after name (or ip and name), level and tag
+        int name = -1;
+        int level = -1;
+        int tag = -1;
+        // last separator, which leaves non-empty message
+        int last = -1;
+        // nearest separator on the right, and if there are only digits between it and current position
+        int next = -1;
+        boolean digits = false;
+        int i = end - 1;
+        for (; i >= start; i--) {
+            byte b = line.get(i);
+            if (b != SEPARATOR) {
+                if (terminatorBefore(line, start, i + 1) > 0) {
+                    break;
+                }
+                digits = digits && b >= '0' && b <= '9';
+                continue;
+            }
+            if (level >= 0) {
+                // level is found, looking for ip separator
+                if (i <= level - 2) {
+                    name = i;
+                    break;
+                }
+            } else {
+                if (last < 0 && i <= end - 2) {
+                    last = i;
+                }
+                // there are digits till next separator and tag before the last one
+                if (digits && next > i + 1 && last >= next + 2) {
+                    level = i;
+                    tag = next;
+                    if (!multicast) {
+                        break;
+                    }
+                }
+            }
+            next = i;
+            digits = true;
         }
-        if (matcher == null || !matcher.find()) {
+
+        // line starts after line break, or at the buffer start
+        int lineStart = start;
+        for (int j = i; j >= start; j--) {
+            if (terminatorBefore(line, start, j + 1) > 0) {
+                lineStart = j + 1;
+                break;
+            }
+        }
+        int fieldsStart = multicast ? name : level;
+        if (level < 0 || fieldsStart < lineStart + 1) {
+            return null;
+        }
+
+        Level logLevel = level(line, level + 1, tag);
+        if (logLevel == null) {
             return null;
         }
 
+        DeviceInfo device;
+        if (multicast) {
+            device = device(line, lineStart, name, line, name + 1, level);
+        } else {
+            device = device(ipBytes(ip), 0, ip == null ? 0 : lastIpBytes.limit(), line, lineStart, level);
+        }
         return DeviceLoggerMessage.builder()
-                .device(new DeviceInfo(
-                        DeviceLogSource.MULTICAST.equals(source) ? matcher.group(GROUP_IP) : ip,
-                        matcher.group(GROUP_NAME))
-                )
-                .level(Level.intToLevel(Integer.parseInt(matcher.group(GROUP_LEVEL))))
-                .tag(matcher.group(GROUP_TAG))
-                .message(matcher.group(GROUP_MESSAGE))
+                .device(device)
+                .level(logLevel)
+                .tag(tag(line, tag + 1, last))
+                .message(string(line, last + 1, end))
                 .source(source)
-                .dateTime(LocalDateTime.now())
+                .dateTime(now())
                 .build();
     }
+
+    private DeviceInfo device(ByteBuffer ip, int ipStart, int ipEnd, ByteBuffer name, int nameStart, int nameEnd) {
+        int hash = hash(ip, ipStart, ipEnd) * 31 + hash(name, nameStart, nameEnd);
+        DeviceInfo info = devices.get(hash, ip, ipStart, ipEnd, name, nameStart, nameEnd);
+        if (info == null) {
+            info = new DeviceInfo(
+                    ip == null ? null : string(ip, ipStart, ipEnd),
+                    string(name, nameStart, nameEnd)
+            );
+            devices.put(hash, ip, ipStart, ipEnd, name, nameStart, nameEnd, info);
+        }
+        return info;
+    }
+
+    private String tag(ByteBuffer line, int start, int end) {
+        int hash = hash(line, start, end);
+        String tag = tags.get(hash, line, start, end, null, 0, 0);
+        if (tag == null) {
+            tag = string(line, start, end);
+            tags.put(hash, line, start, end, null, 0, 0, tag);
+        }
+        return tag;
+    }
+
+    private ByteBuffer ipBytes(String ip) {
+        if (ip == null) {
+            return null;
+        }
+        if (ip != lastIp) {
+            lastIp = ip;
+            lastIpBytes = ByteBuffer.wrap(ip.getBytes(StandardCharsets.UTF_8));
+        }
+        return lastIpBytes;
+    }
+
+    private LocalDateTime now() {
+        long millis = System.currentTimeMillis();
+        if (time == null || millis != timeMillis) {
+            timeMillis = millis;
+            time = LocalDateTime.now();
+        }
+        return time;
+    }
+
+    private String string(ByteBuffer buffer, int start, int end) {
+        int length = end - start;
+        if (chars.length < length) {
+            chars = new byte[length];
+        }
+        buffer.get(start, chars, 0, length);
+        return new String(chars, 0, length, StandardCharsets.UTF_8);
+    }
+
+    // Level from digits, null if it's out of int range or not a log level
+    private static Level level(ByteBuffer line, int start, int end) {
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = line.get(i) - '0';
+            if (value > (Integer.MAX_VALUE - digit) / 10) {
+                return null;
+            }
+            value = value * 10 + digit;
+        }
+        return switch (value) {
+            case 0, 10, 20, 30, 40 -> Level.intToLevel(value);
+            default -> null;
+        };
+    }
+
+    /**
+     * Length of line terminator which ends right before end: \n, \r, \r\n, or utf-8 encoded U+0085, U+2028, U+2029.
+     * These are the chars regex dot doesn't match.
+     */
+    private static int terminatorBefore(ByteBuffer line, int start, int end) {
+        if (end <= start) {
+            return 0;
+        }
+        byte b = line.get(end - 1);
+        if (b == '\n') {
+            return end - 2 >= start && line.get(end - 2) == '\r' ? 2 : 1;
+        }
+        if (b == '\r') {
+            return 1;
+        }
+        if (b == (byte) 0x85 && end - 2 >= start && line.get(end - 2) == (byte) 0xC2) {
+            return 2;
+        }
+        if ((b == (byte) 0xA8 || b == (byte) 0xA9) && end - 3 >= start
+                && line.get(end - 2) == (byte) 0x80 && line.get(end - 3) == (byte) 0xE2) {
+            return 3;
+        }
+        return 0;
+    }
+
+    private static int hash(ByteBuffer buffer, int start, int end) {
+        if (buffer == null) {
+            return 0;
+        }
+        int hash = 1;
+        for (int i = start; i < end; i++) {
+            hash = hash * 31 + buffer.get(i);
+        }
+        return hash;
+    }
+
+    /**
+     * Open addressing table, keyed by one or two byte ranges. Cleared when full.
+     */
+    private static class KeyCache<V> {
+        private final int[] hashes;
+        private final byte[][] firstKeys;
+        private final byte[][] secondKeys;
+        private final Object[] values;
+        private final int mask;
+        private int size;
+
+        private KeyCache(int capacity) {
+            hashes = new int[capacity];
+            firstKeys = new byte[capacity][];
+            secondKeys = new byte[capacity][];
+            values = new Object[capacity];
+            mask = capacity - 1;
+        }
+
+        @SuppressWarnings("unchecked")
+        private V get(int hash, ByteBuffer first, int firstStart, int firstEnd, ByteBuffer second, int secondStart, int secondEnd) {
+            for (int slot = spread(hash) & mask; values[slot] != null; slot = (slot + 1) & mask) {
+                if (hashes[slot] == hash
+                        && same(firstKeys[slot], first, firstStart, firstEnd)
+                        && same(secondKeys[slot], second, secondStart, secondEnd)) {
+                    return (V) values[slot];
+                }
+            }
+            return null;
+        }
+
+        private void put(int hash, ByteBuffer first, int firstStart, int firstEnd, ByteBuffer second, int secondStart, int secondEnd, V value) {
+            // keep it at most 3/4 full, so probing stays short
+            if (size >= values.length * 3 / 4) {
+                Arrays.fill(values, null);
+                Arrays.fill(firstKeys, null);
+                Arrays.fill(secondKeys, null);
+                size = 0;
+            }
+            int slot = spread(hash) & mask;
+            while (values[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            hashes[slot] = hash;
+            firstKeys[slot] = bytes(first, firstStart, firstEnd);
+            secondKeys[slot] = bytes(second, secondStart, secondEnd);
+            values[slot] = value;
+            size++;
+        }
+
+        private static int spread(int hash) {
+            return hash ^ (hash >>> 16);
+        }
+
+        private static byte[] bytes(ByteBuffer buffer, int start, int end) {
+            if (buffer == null) {
+                return null;
+            }
+            byte[] bytes = new byte[end - start];
+            buffer.get(start, bytes);
+            return bytes;
+        }
+
+        private static boolean same(byte[] key, ByteBuffer buffer, int start, int end) {
+            if (key == null || buffer == null) {
+                return key == null && buffer == null;
+            }
+            if (key.length != end - start) {
+                return false;
+            }
+            for (int i = 0; i < key.length; i++) {
+                if (key[i] != buffer.get(start + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
 }
@@ -7,17 +7,17 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import ru.pobopo.smartthing.consumers.DeviceLogsConsumer;
 import ru.pobopo.smartthing.gateway.service.AsyncQueuedConsumersProcessor;
-import ru.pobopo.smartthing.gateway.service.job.BackgroundJob;
+import ru.pobopo.smartthing.gateway.service.job.udp.UdpPacketHandler;
 import ru.pobopo.smartthing.model.DeviceLogSource;
 import ru.pobopo.smartthing.model.DeviceLoggerMessage;
 
-import java.net.*;
-import java.nio.charset.StandardCharsets;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 
 @Slf4j
 @Component
 @RequiredArgsConstructor
-public class MulticastLogsListener implements BackgroundJob {
+public class MulticastLogsListener implements UdpPacketHandler {
 
     @Value("${device.logs.multicast.group}")
     private String group;
@@ -25,43 +25,36 @@ public class MulticastLogsListener implements BackgroundJob {
     private String port;
 
     private final AsyncQueuedConsumersProcessor<DeviceLogsConsumer, DeviceLoggerMessage> processor;
-    private final DeviceLoggerMessageParser messageParser;
+    private final DeviceLoggerMessageParser messageParser = new DeviceLoggerMessageParser();
 
     @Override
-    public void run() {
-        log.info("UDP logs started");
-        try {
-            if (StringUtils.isEmpty(group) || StringUtils.isEmpty(port)) {
-                log.error("Multicast logs group or port missing! Leaving");
-                return;
-            }
+    public String getName() {
+        return "multicast logs";
+    }
 
-            SocketAddress address = new InetSocketAddress(InetAddress.getByName(group), Integer.parseInt(port));
-            MulticastSocket multicastSocket = new MulticastSocket(address);
-            byte[] buf = new byte[4096];
+    @Override
+    public int getPort() {
+        if (StringUtils.isEmpty(group) || StringUtils.isEmpty(port)) {
+            log.error("Multicast logs group or port missing!");
+            return 0;
+        }
+        return Integer.parseInt(port);
+    }
 
-            try {
-                multicastSocket.joinGroup(address, multicastSocket.getNetworkInterface());
-                for (; ; ) {
-                    DatagramPacket packet = new DatagramPacket(buf, buf.length);
-                    multicastSocket.receive(packet);
+    @Override
+    public String getGroup() {
+        return group;
+    }
 
-                    String message = new String(
-                            packet.getData(),
-                            packet.getOffset(),
-                            packet.getLength(),
-                            StandardCharsets.UTF_8
-                    );
-                    processor.process(
-                            messageParser.parse(DeviceLogSource.MULTICAST, message, null)
-                    );
-                }
-            } finally {
-                multicastSocket.leaveGroup(address, multicastSocket.getNetworkInterface());
-                multicastSocket.close();
-            }
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
+    @Override
+    public void onListening(boolean listening) {
+        log.info("UDP logs {}", listening ? "started" : "stopped");
+    }
+
+    @Override
+    public void onPacket(InetSocketAddress source, String networkInterface, ByteBuffer packet) {
+        processor.process(
+                messageParser.parse(DeviceLogSource.MULTICAST, packet, null)
+        );
     }
 }
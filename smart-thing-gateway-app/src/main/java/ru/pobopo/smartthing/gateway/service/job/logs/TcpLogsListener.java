@@ -7,120 +7,355 @@ import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import ru.pobopo.smartthing.consumers.DeviceLogsConsumer;
+import ru.pobopo.smartthing.gateway.model.logs.TcpLogsStats;
 import ru.pobopo.smartthing.gateway.service.AsyncQueuedConsumersProcessor;
 import ru.pobopo.smartthing.gateway.service.job.BackgroundJob;
 import ru.pobopo.smartthing.model.DeviceLogSource;
 import ru.pobopo.smartthing.model.DeviceLoggerMessage;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketException;
-import java.util.HashMap;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Receives device logs over tcp, one line per message, on single selector thread.
+ * Every connection reads into its own direct buffer of max line size (buffers are reused after connection closes),
+ * lines are cut and parsed right in the buffer and passed to logs processor.
+ * Connection which sent more lines than allowed per second isn't read until its budget refills,
+ * and no connection is read while logs processor is too far behind, so devices are slowed down by tcp flow control
+ * instead of gateway queueing or dropping their logs.
+ */
 @Slf4j
 @Component
 @RequiredArgsConstructor
 public class TcpLogsListener implements BackgroundJob {
+    private static final long TICK_MILLIS = 100;
+
     @Value("${device.logs.tcp.port}")
     private String port;
+    @Value("${device.logs.tcp.max-connections:256}")
+    private int maxConnections;
+    @Value("${device.logs.tcp.max-line:4096}")
+    private int maxLine;
+    @Value("${device.logs.tcp.idle-timeout:600000}")
+    private long idleTimeout;
+    @Value("${device.logs.tcp.max-lines-per-second:200}")
+    private int maxLinesPerSecond;
+    @Value("${device.logs.tcp.max-pending:10000}")
+    private int maxPending;
 
     private final AsyncQueuedConsumersProcessor<DeviceLogsConsumer, DeviceLoggerMessage> processor;
-    private final DeviceLoggerMessageParser messageParser;
+    private final DeviceLoggerMessageParser messageParser = new DeviceLoggerMessageParser();
+
+    private final Map<String, Connection> connections = new ConcurrentHashMap<>();
+    // used by selector thread only
+    private final ArrayDeque<ByteBuffer> freeBuffers = new ArrayDeque<>();
+    private boolean overloaded;
+    private long lastTick = System.nanoTime();
+    private long lastLines;
+    private long lastBytes;
+
+    private volatile Selector selector;
+    private volatile boolean running = true;
+    private volatile boolean listening;
 
-    private ServerSocket serverSocket;
-    private final HashMap<String, LogClient> clients = new HashMap<>();
+    // written only by selector thread
+    private volatile long accepted;
+    private volatile long rejected;
+    private volatile long idleClosed;
+    private volatile long lines;
+    private volatile long bytes;
+    private volatile long truncated;
+    private volatile double linesPerSecond;
+    private volatile double bytesPerSecond;
 
     @Override
     public void run() {
-        try {
-            if (StringUtils.isEmpty(port)) {
-                log.error("Tcp logs port missing! Leaving");
-                return;
-            }
-            serverSocket = new ServerSocket(Integer.parseInt(port));
+        if (StringUtils.isEmpty(port)) {
+            log.error("Tcp logs port missing! Leaving");
+            return;
+        }
+        try (Selector selector = Selector.open(); ServerSocketChannel server = ServerSocketChannel.open()) {
+            this.selector = selector;
+            server.bind(new InetSocketAddress(Integer.parseInt(port)));
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+            listening = true;
             log.info("TCP logs started, waiting for connections...");
+            loop(selector, server);
+        } catch (Exception exception) {
+            log.error("Tcp logs listen exception: {}", exception.getMessage(), exception);
+        } finally {
+            listening = false;
+            new ArrayList<>(connections.values()).forEach(this::close);
+            log.info("Tcp device logs listener stopped");
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+        Selector current = selector;
+        if (current != null) {
+            current.wakeup();
+        }
+    }
+
+    public TcpLogsStats getStats() {
+        return TcpLogsStats.builder()
+                .port(StringUtils.isEmpty(port) ? 0 : Integer.parseInt(port))
+                .listening(listening)
+                .connections(connections.size())
+                .maxConnections(maxConnections)
+                .pausedConnections((int) connections.values().stream().filter((connection) -> connection.paused).count())
+                .accepted(accepted)
+                .rejected(rejected)
+                .idleClosed(idleClosed)
+                .lines(lines)
+                .bytes(bytes)
+                .truncated(truncated)
+                .linesPerSecond(Math.round(linesPerSecond * 100) / 100.0)
+                .bytesPerSecond(Math.round(bytesPerSecond * 100) / 100.0)
+                .pending(processor.getPending())
+                .build();
+    }
 
-            while (!serverSocket.isClosed()) {
-                try {
-                    Socket socketClient = serverSocket.accept();
-                    String ip = socketClient.getInetAddress().getHostAddress();
-                    if (clients.containsKey(ip)) {
-                        log.warn("Already have connection with {}, closing", ip);
-                        clients.remove(ip).stopClient();
-                    }
-
-                    LogClient client = new LogClient(socketClient, messageParser, processor);
-                    client.setDaemon(true);
-                    client.start();
-                    clients.put(ip, client);
-                    log.info(
-                            "Got new log client: {}, total clients count: {}",
-                            ip,
-                            clients.size()
-                    );
-                } catch (SocketException exception) {
-                    if (StringUtils.equals(exception.getMessage(), "Socket closed")) {
-                        log.info("Socket closed");
-                    } else {
-                        log.error("Socket error: {}", exception.getMessage());
-                    }
-                } catch (Exception exception) {
-                    log.error("Tcp logger error: {}", exception.getMessage());
+    private void loop(Selector selector, ServerSocketChannel server) throws IOException {
+        while (running && !Thread.currentThread().isInterrupted()) {
+            selector.select(TICK_MILLIS);
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isAcceptable()) {
+                    accept(selector, server);
+                } else if (key.isReadable()) {
+                    read((Connection) key.attachment());
                 }
             }
-            log.info("Tcp device logs listener stopped");
-        } catch (Exception e) {
-            log.error("Tcp logs listen exception: {}", e.getMessage(), e);
+
+            long now = System.nanoTime();
+            if (now - lastTick >= TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS)) {
+                tick(now);
+            }
         }
     }
 
-    @PreDestroy
-    public void stop() throws IOException {
-        clients.values().forEach(client -> {
+    private void accept(Selector selector, ServerSocketChannel server) {
+        SocketChannel channel;
+        while (true) {
             try {
-                if (client.isAlive()) {
-                    client.stopClient();
+                channel = server.accept();
+                if (channel == null) {
+                    return;
+                }
+                String ip = ((InetSocketAddress) channel.getRemoteAddress()).getAddress().getHostAddress();
+                Connection existing = connections.get(ip);
+                if (existing != null) {
+                    log.warn("Already have connection with {}, closing", ip);
+                    close(existing);
                 }
-            } catch (IOException e) {
-                log.error("Failed to stop log client: {}", e.getMessage());
+                if (connections.size() >= maxConnections) {
+                    rejected++;
+                    log.warn("Too many log clients ({}), rejecting {}", connections.size(), ip);
+                    channel.close();
+                    continue;
+                }
+
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+                ByteBuffer buffer = freeBuffers.isEmpty() ? ByteBuffer.allocateDirect(maxLine) : freeBuffers.poll();
+                Connection connection = new Connection(ip, channel, buffer, maxLinesPerSecond);
+                connection.key = channel.register(selector, overloaded ? 0 : SelectionKey.OP_READ, connection);
+                connection.paused = overloaded;
+                connections.put(ip, connection);
+                accepted++;
+                log.info("Got new log client: {}, total clients count: {}", ip, connections.size());
+            } catch (IOException exception) {
+                log.error("Failed to accept log client: {}", exception.getMessage());
+                return;
             }
-        });
-        serverSocket.close();
+        }
     }
 
-    @RequiredArgsConstructor
-    private static class LogClient extends Thread {
-        private final Socket clientSocket;
-        private final DeviceLoggerMessageParser messageParser;
-        private final AsyncQueuedConsumersProcessor<DeviceLogsConsumer, DeviceLoggerMessage> processor;
+    private void read(Connection connection) {
+        int read;
+        try {
+            read = connection.channel.read(connection.buffer);
+        } catch (IOException exception) {
+            log.error("Tcp client log stop: {}", exception.getMessage());
+            close(connection);
+            return;
+        }
+        if (read < 0) {
+            // last line may have no line break
+            if (!connection.discarding && connection.buffer.position() > 0) {
+                emit(connection, 0, connection.buffer.position());
+            }
+            log.info("Log client finished: {}", connection.ip);
+            close(connection);
+            return;
+        }
 
-        @Override
-        public void run() {
-            try {
-                InetAddress address = clientSocket.getInetAddress();
-                BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-
-                String message;
-                while ((message = in.readLine()) != null) {
-                    processor.process(
-                            messageParser.parse(DeviceLogSource.TCP, message, address.getHostAddress())
-                    );
-                }
+        bytes += read;
+        connection.lastRead = System.nanoTime();
+        frame(connection);
+        if (connection.budget <= 0) {
+            pause(connection);
+        }
+        if (processor.getPending() >= maxPending && !overloaded) {
+            log.warn("Device logs processing is behind ({} pending), pausing tcp logs", processor.getPending());
+            overloaded = true;
+            connections.values().forEach(this::pause);
+        }
+    }
+
+    // Emits all complete lines of connection buffer and moves the rest to the buffer start
+    private void frame(Connection connection) {
+        ByteBuffer buffer = connection.buffer;
+        int end = buffer.position();
+        int start = 0;
+        for (int i = connection.scanned; i < end; i++) {
+            if (buffer.get(i) != '\n') {
+                continue;
+            }
+            if (connection.discarding) {
+                connection.discarding = false;
+            } else {
+                emit(connection, start, i);
+            }
+            start = i + 1;
+        }
 
-                in.close();
-                clientSocket.close();
-                log.info("Log client finished: {}", clientSocket.getInetAddress().getHostAddress());
-            } catch (IOException e) {
-                log.error("Tcp client log stop: {}", e.getMessage());
+        if (start == 0 && end == buffer.capacity()) {
+            // line doesn't fit the buffer, skip it up to the next line break
+            if (!connection.discarding) {
+                truncated++;
+                connection.discarding = true;
             }
+            buffer.clear();
+            connection.scanned = 0;
+            return;
+        }
+        buffer.flip().position(start);
+        buffer.compact();
+        connection.scanned = buffer.position();
+    }
+
+    private void emit(Connection connection, int start, int end) {
+        if (end > start && connection.buffer.get(end - 1) == '\r') {
+            end--;
+        }
+        lines++;
+        connection.budget--;
+        if (end == start) {
+            return;
         }
+        ByteBuffer line = connection.line.limit(end).position(start);
+        try {
+            processor.process(messageParser.parse(DeviceLogSource.TCP, line, connection.ip));
+        } catch (Exception exception) {
+            log.error("Bad log message from {}: {}", connection.ip, exception.getMessage());
+        }
+    }
+
+    private void tick(long now) {
+        double seconds = (now - lastTick) / 1e9;
+        lastTick = now;
+
+        if (overloaded && processor.getPending() < maxPending / 2) {
+            log.info("Device logs processing caught up, resuming tcp logs");
+            overloaded = false;
+        }
+        long idleNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+        for (Connection connection : new ArrayList<>(connections.values())) {
+            if (idleTimeout > 0 && now - connection.lastRead >= idleNanos) {
+                log.info("Log client {} is idle, closing", connection.ip);
+                idleClosed++;
+                close(connection);
+                continue;
+            }
+            connection.budget = Math.min(maxLinesPerSecond, connection.budget + maxLinesPerSecond * seconds);
+            if (connection.paused && !overloaded && connection.budget > 0) {
+                resume(connection);
+            }
+        }
+
+        // exponential moving average over ~10 seconds
+        double alpha = 1 - Math.exp(-seconds / 10);
+        long currentLines = lines;
+        long currentBytes = bytes;
+        linesPerSecond += alpha * ((currentLines - lastLines) / seconds - linesPerSecond);
+        bytesPerSecond += alpha * ((currentBytes - lastBytes) / seconds - bytesPerSecond);
+        lastLines = currentLines;
+        lastBytes = currentBytes;
+    }
+
+    private void pause(Connection connection) {
+        if (!connection.paused && connection.key.isValid()) {
+            connection.key.interestOps(0);
+            connection.paused = true;
+        }
+    }
+
+    private void resume(Connection connection) {
+        if (connection.key.isValid()) {
+            connection.key.interestOps(SelectionKey.OP_READ);
+            connection.paused = false;
+        }
+    }
+
+    private void close(Connection connection) {
+        connections.remove(connection.ip, connection);
+        try {
+            connection.channel.close();
+        } catch (IOException exception) {
+            log.error("Failed to stop log client: {}", exception.getMessage());
+        }
+        if (connection.buffer != null) {
+            connection.buffer.clear();
+            freeBuffers.push(connection.buffer);
+            connection.buffer = null;
+            connection.line = null;
+        }
+    }
+
+    private static class Connection {
+        private final String ip;
+        private final SocketChannel channel;
+        private ByteBuffer buffer;
+        // view of buffer for parser, so line bounds don't touch buffer position
+        private ByteBuffer line;
+        private SelectionKey key;
+
+        // bytes before this offset in buffer are already checked for line break
+        private int scanned;
+        // skipping rest of too long line
+        private boolean discarding;
+        private double budget;
+        private long lastRead = System.nanoTime();
+        private volatile boolean paused;
 
-        public void stopClient() throws IOException {
-            clientSocket.close();
+        private Connection(String ip, SocketChannel channel, ByteBuffer buffer, double budget) {
+            this.ip = ip;
+            this.channel = channel;
+            this.buffer = buffer;
+            this.line = buffer.duplicate();
+            this.budget = budget;
         }
     }
 }
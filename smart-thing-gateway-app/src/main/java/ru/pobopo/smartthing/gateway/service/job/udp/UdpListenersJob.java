@@ -0,0 +1,363 @@
+package ru.pobopo.smartthing.gateway.service.job.udp;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import ru.pobopo.smartthing.gateway.model.UdpListenerStats;
+import ru.pobopo.smartthing.gateway.service.job.BackgroundJob;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Single selector thread for all udp listeners.
+ * Handlers are grouped by port: one non-blocking channel per port joins all groups of its handlers
+ * on all configured interfaces (or all multicast capable ones), every datagram received on the port is passed to all of them.
+ * Java can't tell on which interface datagram came, so interface is resolved by source address subnet.
+ * Datagrams longer than max packet size are dropped and counted as truncated.
+ */
+@Slf4j
+@Component
+public class UdpListenersJob implements BackgroundJob {
+    private final List<UdpPacketHandler> handlers;
+
+    @Value("${device.udp.interfaces:}")
+    private List<String> interfaceNames;
+    @Value("${device.udp.receive-buffer:262144}")
+    private int receiveBuffer;
+    @Value("${device.udp.max-packet:4096}")
+    private int maxPacket;
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final List<Subnet> subnets = new ArrayList<>();
+    private volatile Selector selector;
+    private volatile boolean running = true;
+
+    public UdpListenersJob(List<UdpPacketHandler> handlers) {
+        this.handlers = handlers;
+    }
+
+    @Override
+    public void run() {
+        log.info("Udp listeners job started");
+        try (Selector selector = Selector.open()) {
+            this.selector = selector;
+            List<NetworkInterface> networkInterfaces = findInterfaces();
+            for (NetworkInterface networkInterface : networkInterfaces) {
+                for (InterfaceAddress address : networkInterface.getInterfaceAddresses()) {
+                    if (address.getAddress() instanceof Inet4Address) {
+                        subnets.add(new Subnet(networkInterface.getName(), address.getAddress(), address.getNetworkPrefixLength()));
+                    }
+                }
+            }
+            for (Map.Entry<Integer, List<UdpPacketHandler>> entry : groupByPort().entrySet()) {
+                open(selector, entry.getKey(), entry.getValue(), networkInterfaces);
+            }
+            if (listeners.isEmpty()) {
+                log.warn("No udp listeners to run, leaving");
+                return;
+            }
+            loop(selector);
+        } catch (Exception exception) {
+            log.error("Udp listeners job stopped", exception);
+        } finally {
+            for (Listener listener : listeners) {
+                listener.close();
+            }
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+        Selector current = selector;
+        if (current != null) {
+            current.wakeup();
+        }
+    }
+
+    public List<UdpListenerStats> getStats() {
+        Map<Integer, Long> drops = readKernelDrops();
+        List<UdpListenerStats> stats = new ArrayList<>(listeners.size());
+        for (Listener listener : listeners) {
+            stats.add(UdpListenerStats.builder()
+                    .port(listener.port)
+                    .handlers(listener.handlers.stream().map(UdpPacketHandler::getName).toList())
+                    .groups(listener.groups)
+                    .networkInterfaces(listener.networkInterfaces)
+                    .listening(listener.channel.isOpen())
+                    .receiveBuffer(listener.receiveBuffer)
+                    .received(listener.received)
+                    .bytes(listener.bytes)
+                    .truncated(listener.truncated)
+                    .handlerErrors(listener.errors)
+                    .kernelDrops(drops.getOrDefault(listener.port, -1L))
+                    .build());
+        }
+        return stats;
+    }
+
+    private void loop(Selector selector) throws IOException {
+        // one extra byte to detect datagrams which don't fit, channel silently discards the rest
+        ByteBuffer buffer = ByteBuffer.allocateDirect(maxPacket + 1);
+        while (running && !Thread.currentThread().isInterrupted()) {
+            selector.select();
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (key.isValid() && key.isReadable()) {
+                    receive((Listener) key.attachment(), buffer);
+                }
+            }
+        }
+    }
+
+    private void receive(Listener listener, ByteBuffer buffer) {
+        // drain the socket, so one busy port can't make others wait for the next select
+        while (true) {
+            buffer.clear();
+            SocketAddress source;
+            try {
+                source = listener.channel.receive(buffer);
+            } catch (IOException exception) {
+                log.error("Failed to receive datagram on port {}: {}", listener.port, exception.getMessage());
+                listener.errors++;
+                return;
+            }
+            if (source == null) {
+                return;
+            }
+            buffer.flip();
+            listener.received++;
+            listener.bytes += buffer.remaining();
+            if (buffer.remaining() > maxPacket) {
+                listener.truncated++;
+                continue;
+            }
+            InetSocketAddress address = (InetSocketAddress) source;
+            String networkInterface = resolveInterface(listener, address.getAddress());
+            for (UdpPacketHandler handler : listener.handlers) {
+                try {
+                    handler.onPacket(address, networkInterface, buffer.duplicate());
+                } catch (Exception exception) {
+                    listener.errors++;
+                    log.error("Udp handler {} failed: {}", handler.getName(), exception.getMessage());
+                }
+            }
+        }
+    }
+
+    private Map<Integer, List<UdpPacketHandler>> groupByPort() {
+        Map<Integer, List<UdpPacketHandler>> byPort = new TreeMap<>();
+        for (UdpPacketHandler handler : handlers) {
+            if (handler.getPort() <= 0) {
+                log.error("Udp handler {} has no port, skipping", handler.getName());
+                continue;
+            }
+            byPort.computeIfAbsent(handler.getPort(), (port) -> new ArrayList<>()).add(handler);
+        }
+        return byPort;
+    }
+
+    private String resolveInterface(Listener listener, InetAddress address) {
+        if (address instanceof Inet4Address) {
+            int ip = toInt(address);
+            for (Subnet subnet : subnets) {
+                if ((ip & subnet.mask) == subnet.network) {
+                    return subnet.networkInterface;
+                }
+            }
+        }
+        return listener.networkInterfaces.size() == 1 ? listener.networkInterfaces.get(0) : null;
+    }
+
+    // ipv4 address as big endian int
+    private static int toInt(InetAddress address) {
+        return ByteBuffer.wrap(address.getAddress()).getInt();
+    }
+
+    private void open(Selector selector, int port, List<UdpPacketHandler> portHandlers, List<NetworkInterface> networkInterfaces) {
+        DatagramChannel channel = null;
+        try {
+            channel = DatagramChannel.open(StandardProtocolFamily.INET);
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBuffer);
+            channel.bind(new InetSocketAddress(port));
+
+            List<String> groups = new ArrayList<>();
+            Set<String> joined = new LinkedHashSet<>();
+            for (UdpPacketHandler handler : portHandlers) {
+                String group = handler.getGroup();
+                if (StringUtils.isBlank(group) || groups.contains(group)) {
+                    continue;
+                }
+                InetAddress groupAddress = InetAddress.getByName(group);
+                for (NetworkInterface networkInterface : networkInterfaces) {
+                    try {
+                        channel.join(groupAddress, networkInterface);
+                        joined.add(networkInterface.getName());
+                    } catch (IOException exception) {
+                        log.error("Failed to join group {} on {}: {}", group, networkInterface.getName(), exception.getMessage());
+                    }
+                }
+                groups.add(group);
+            }
+            if (!groups.isEmpty() && joined.isEmpty()) {
+                throw new IOException("Can't join multicast groups " + groups + " on any network interface");
+            }
+
+            channel.configureBlocking(false);
+            Listener listener = new Listener(
+                    port,
+                    List.copyOf(portHandlers),
+                    List.copyOf(groups),
+                    List.copyOf(joined),
+                    channel,
+                    // os can round it or cap by system limit
+                    channel.getOption(StandardSocketOptions.SO_RCVBUF)
+            );
+            channel.register(selector, SelectionKey.OP_READ, listener);
+            listeners.add(listener);
+            portHandlers.forEach((handler) -> handler.onListening(true));
+            log.info(
+                    "Listening udp port {} (groups={}, interfaces={}, receive buffer={}) for {}",
+                    port, groups, listener.networkInterfaces, listener.receiveBuffer,
+                    portHandlers.stream().map(UdpPacketHandler::getName).toList()
+            );
+        } catch (Exception exception) {
+            log.error("Failed to listen udp port {}: {}", port, exception.getMessage());
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+            portHandlers.forEach((handler) -> handler.onListening(false));
+        }
+    }
+
+    private List<NetworkInterface> findInterfaces() throws SocketException {
+        List<NetworkInterface> result = new ArrayList<>();
+        for (String name : interfaceNames) {
+            if (StringUtils.isBlank(name)) {
+                continue;
+            }
+            NetworkInterface networkInterface = NetworkInterface.getByName(name.trim());
+            if (networkInterface == null) {
+                log.error("Network interface {} not found", name);
+            } else {
+                result.add(networkInterface);
+            }
+        }
+        if (!result.isEmpty()) {
+            return result;
+        }
+
+        NetworkInterface loopback = null;
+        for (NetworkInterface networkInterface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+            if (!networkInterface.isUp() || !hasIpv4(networkInterface)) {
+                continue;
+            }
+            if (networkInterface.isLoopback()) {
+                loopback = networkInterface;
+            } else if (networkInterface.supportsMulticast() && !networkInterface.isVirtual()) {
+                result.add(networkInterface);
+            }
+        }
+        if (result.isEmpty() && loopback != null) {
+            result.add(loopback);
+        }
+        return result;
+    }
+
+    private static boolean hasIpv4(NetworkInterface networkInterface) {
+        return networkInterface.inetAddresses().anyMatch((address) -> address instanceof Inet4Address);
+    }
+
+    // Drops counted by kernel for sockets on the port, linux only
+    private static Map<Integer, Long> readKernelDrops() {
+        Path path = Path.of("/proc/net/udp");
+        if (!Files.isReadable(path)) {
+            return Map.of();
+        }
+        Map<Integer, Long> drops = new HashMap<>();
+        try {
+            List<String> lines = Files.readAllLines(path);
+            for (String line : lines.subList(Math.min(1, lines.size()), lines.size())) {
+                String[] columns = StringUtils.split(line);
+                if (columns.length < 13) {
+                    continue;
+                }
+                String local = columns[1];
+                int port = Integer.parseInt(local.substring(local.indexOf(':') + 1), 16);
+                drops.merge(port, Long.parseLong(columns[columns.length - 1]), Long::sum);
+            }
+        } catch (Exception exception) {
+            log.debug("Failed to read udp drops: {}", exception.getMessage());
+        }
+        return drops;
+    }
+
+    private static class Listener {
+        private final int port;
+        private final List<UdpPacketHandler> handlers;
+        private final List<String> groups;
+        private final List<String> networkInterfaces;
+        private final DatagramChannel channel;
+        private final int receiveBuffer;
+
+        // written only by selector thread
+        private volatile long received;
+        private volatile long bytes;
+        private volatile long truncated;
+        private volatile long errors;
+
+        private Listener(
+                int port,
+                List<UdpPacketHandler> handlers,
+                List<String> groups,
+                List<String> networkInterfaces,
+                DatagramChannel channel,
+                int receiveBuffer
+        ) {
+            this.port = port;
+            this.handlers = handlers;
+            this.groups = groups;
+            this.networkInterfaces = networkInterfaces;
+            this.channel = channel;
+            this.receiveBuffer = receiveBuffer;
+        }
+
+        private void close() {
+            try {
+                channel.close();
+            } catch (IOException exception) {
+                log.error("Failed to close udp channel on port {}: {}", port, exception.getMessage());
+            }
+            handlers.forEach((handler) -> handler.onListening(false));
+        }
+    }
+
+    private static class Subnet {
+        private final String networkInterface;
+        private final int network;
+        private final int mask;
+
+        private Subnet(String networkInterface, InetAddress address, int prefix) {
+            this.networkInterface = networkInterface;
+            this.mask = prefix == 0 ? 0 : -1 << (32 - prefix);
+            this.network = toInt(address) & mask;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package ru.pobopo.smartthing.gateway.service.job.udp;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Handler of datagrams received on some port by {@link UdpListenersJob}.
+ * All handlers are called from the single selector thread, so they should be fast and never block.
+ */
+public interface UdpPacketHandler {
+    String getName();
+
+    int getPort();
+
+    /**
+     * Multicast group to join, blank for plain unicast listener
+     */
+    String getGroup();
+
+    /**
+     * @param networkInterface name of interface, which subnet contains source address, null if unknown
+     * @param packet datagram bytes between position and limit, valid only during the call
+     */
+    void onPacket(InetSocketAddress source, String networkInterface, ByteBuffer packet);
+
+    default void onListening(boolean listening) {
+    }
+}
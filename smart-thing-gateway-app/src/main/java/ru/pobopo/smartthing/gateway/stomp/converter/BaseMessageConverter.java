@@ -4,6 +4,7 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import org.springframework.messaging.Message;
 import org.springframework.messaging.converter.AbstractMessageConverter;
 import ru.pobopo.smartthing.model.stomp.BaseMessage;
+import ru.pobopo.smartthing.model.stomp.DeviceBatchRequestMessage;
 import ru.pobopo.smartthing.model.stomp.DeviceRequestMessage;
 import ru.pobopo.smartthing.model.stomp.GatewayCommandMessage;
 import ru.pobopo.smartthing.model.stomp.GatewayRequestMessage;
@@ -26,6 +27,9 @@ public class BaseMessageConverter extends AbstractMessageConverter {
                 case DEVICE_REQUEST -> {
                     return objectMapper.readValue(payload, DeviceRequestMessage.class);
                 }
+                case DEVICE_BATCH_REQUEST -> {
+                    return objectMapper.readValue(payload, DeviceBatchRequestMessage.class);
+                }
                 case GATEWAY_COMMAND -> {
                     return objectMapper.readValue(payload, GatewayCommandMessage.class);
                 }
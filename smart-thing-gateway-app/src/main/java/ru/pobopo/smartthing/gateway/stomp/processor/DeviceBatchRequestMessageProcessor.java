@@ -0,0 +1,32 @@
+package ru.pobopo.smartthing.gateway.stomp.processor;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import ru.pobopo.smartthing.gateway.model.device.DeviceBatchResponse;
+import ru.pobopo.smartthing.gateway.service.device.DeviceBatchService;
+import ru.pobopo.smartthing.model.InternalHttpResponse;
+import ru.pobopo.smartthing.model.stomp.DeviceBatchRequestMessage;
+
+@Slf4j
+@RequiredArgsConstructor
+public class DeviceBatchRequestMessageProcessor implements MessageProcessor {
+    private final DeviceBatchService batchService;
+    private final ObjectMapper objectMapper;
+
+    @Override
+    public InternalHttpResponse process(Object payload) throws Exception {
+        DeviceBatchRequestMessage message = (DeviceBatchRequestMessage) payload;
+        DeviceBatchResponse response = batchService.execute(message.getRequest()).join();
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_JSON);
+        return InternalHttpResponse.builder()
+                .data(objectMapper.writeValueAsString(response))
+                .status(HttpStatus.OK)
+                .headers(headers)
+                .build();
+    }
+}
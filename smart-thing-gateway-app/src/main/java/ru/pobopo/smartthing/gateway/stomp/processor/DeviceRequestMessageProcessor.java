@@ -4,6 +4,7 @@ import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.http.ResponseEntity;
 import ru.pobopo.smartthing.gateway.service.device.DeviceRequestService;
+import ru.pobopo.smartthing.gateway.service.device.api.DeviceResponses;
 import ru.pobopo.smartthing.model.InternalHttpResponse;
 import ru.pobopo.smartthing.model.stomp.DeviceRequestMessage;
 
@@ -16,9 +17,9 @@ public class DeviceRequestMessageProcessor implements MessageProcessor {
     @Override
     public InternalHttpResponse process(Object payload) throws Exception {
         DeviceRequestMessage request = (DeviceRequestMessage) payload;
-        ResponseEntity<String> response = apiService.execute(request.getRequest());
+        ResponseEntity<byte[]> response = apiService.execute(request.getRequest());
         return InternalHttpResponse.builder()
-                .data(response.getBody())
+                .data(DeviceResponses.bodyAsString(response))
                 .status(response.getStatusCode())
                 .headers(response.getHeaders())
                 .build();
@@ -0,0 +1,233 @@
+package ru.pobopo.smartthing.gateway.service.job.logs;
+
+import org.junit.jupiter.api.Test;
+import org.slf4j.event.Level;
+import ru.pobopo.smartthing.model.DeviceLogSource;
+import ru.pobopo.smartthing.model.DeviceLoggerMessage;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Compares parser with the regex patterns it replaced, on hand picked lines and on generated corpus
+ */
+class DeviceLoggerMessageParserTest {
+    private static final Pattern TCP_PATTERN = Pattern.compile(
+            "(?<name>.+)[&](?<level>\\d+)[&](?<tag>.+)[&](?<message>.+)\\Z"
+    );
+    private static final Pattern MULTICAST_PATTERN = Pattern.compile(
+            "(?<ip>.+)[&](?<name>.+)[&](?<level>\\d+)[&](?<tag>.+)[&](?<message>.+)\\Z"
+    );
+
+    private static final long SEED = 20240917L;
+    private static final int CORPUS_SIZE = 200_000;
+
+    private static final String[] ATOMS = {
+            "&", "&", "&", "1", "0", "20", "40", "30", "10", "a", "b", "tag", " ", "\n", "\r", "\r\n",
+            "\u0085", "\u2028", "\u2029", "\u00e9", "\u043f", "\ud83d\ude00", "x&y", "99999999999", "007"
+    };
+    // parts of multibyte sequences and invalid bytes
+    private static final byte[][] RAW_ATOMS = {
+            {(byte) 0xE2, (byte) 0x80}, {(byte) 0xC2}, {(byte) 0x85}, {(byte) 0xFF}, {(byte) 0xF0, (byte) 0x9F}
+    };
+    private static final String[] LEVELS = {"0", "10", "20", "30", "40", "5", "", "x", "020"};
+
+    private static final List<String> EDGE_CASES = List.of(
+            "dev&20&tag&message",
+            "dev&20&tag&message\n",
+            "dev&20&tag&message\r\n",
+            "dev&20&tag&message\r",
+            "dev&20&tag&message\n\n",
+            "dev&20&tag&",
+            "dev&20&&message",
+            "&20&tag&message",
+            "dev&&tag&message",
+            "dev&2x&tag&message",
+            "dev&77&tag&message",
+            "dev&020&tag&message",
+            "dev&99999999999&tag&message",
+            "dev&10&tag&message&with&separators",
+            "dev&10&10&10&10",
+            "d&e&v&30&t&a&g&m",
+            "dev&40&tag&first line\ndev&0&other&second line",
+            "first line\ndev&0&tag&second",
+            "dev&0&tag&message\nno separators",
+            "dev&20&tag&msg\u0085",
+            "dev&20&tag&msg\u2028",
+            "dev&20&tag&msg\u2029",
+            "dev&20&tag&m\u2028dev&30&t&n",
+            "\u043f\u0440\u0438\u0432\u0435\u0442&20&\u0442\u0435\u0433&\ud83d\ude00",
+            "192.168.1.2&dev&20&tag&message",
+            "192.168.1.2&dev&20&tag&message\n",
+            "192.168.1.2&&20&tag&message",
+            "&dev&20&tag&message",
+            "192.168.1.2&dev&name&20&tag&message",
+            "192.168.1.2&dev&20&20&20&message",
+            "1&2&3&4&5&6&7",
+            "",
+            " ",
+            "\n",
+            "&&&&",
+            "dev&20&tag"
+    );
+
+    private final DeviceLoggerMessageParser parser = new DeviceLoggerMessageParser();
+
+    @Test
+    void edgeCases() {
+        for (String line : EDGE_CASES) {
+            for (DeviceLogSource source : DeviceLogSource.values()) {
+                byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+                assertEquals(expected(source, line, "10.0.0.1"), actual(source, bytes, "10.0.0.1"),
+                        () -> source + " " + escape(line));
+            }
+        }
+    }
+
+    @Test
+    void knownFields() {
+        DeviceLoggerMessage tcp = parser.parse(DeviceLogSource.TCP, "d&e&v&30&t&a&g&m\n", "10.0.0.1");
+        assertNotNull(tcp);
+        assertEquals("10.0.0.1", tcp.getDevice().getIp());
+        assertEquals("d&e&v", tcp.getDevice().getName());
+        assertEquals(Level.WARN, tcp.getLevel());
+        assertEquals("t&a&g", tcp.getTag());
+        assertEquals("m", tcp.getMessage());
+        assertEquals(DeviceLogSource.TCP, tcp.getSource());
+        assertNotNull(tcp.getDateTime());
+
+        DeviceLoggerMessage multicast = parser.parse(DeviceLogSource.MULTICAST, "192.168.1.2&dev&40&tag&a&b", null);
+        assertNotNull(multicast);
+        assertEquals("192.168.1.2", multicast.getDevice().getIp());
+        assertEquals("dev", multicast.getDevice().getName());
+        assertEquals(Level.ERROR, multicast.getLevel());
+        assertEquals("tag&a", multicast.getTag());
+        assertEquals("b", multicast.getMessage());
+
+        // unknown level made old parser throw, now such line is skipped
+        assertNull(parser.parse(DeviceLogSource.TCP, "dev&77&tag&message", "10.0.0.1"));
+        assertNull(parser.parse(DeviceLogSource.TCP, (String) null, "10.0.0.1"));
+        assertNull(parser.parse(null, "dev&20&tag&message", "10.0.0.1"));
+    }
+
+    @Test
+    void generatedCorpus() {
+        Random random = new Random(SEED);
+        List<String> mismatches = new ArrayList<>();
+        int matched = 0;
+        for (int n = 0; n < CORPUS_SIZE; n++) {
+            byte[] bytes = randomLine(random);
+            String decoded = new String(bytes, StandardCharsets.UTF_8);
+            for (DeviceLogSource source : DeviceLogSource.values()) {
+                String ip = source == DeviceLogSource.TCP ? "10.0.0." + random.nextInt(3) : null;
+                String expected = expected(source, decoded, ip);
+                String actual = actual(source, bytes, ip);
+                if (expected != null) {
+                    matched++;
+                }
+                if (!String.valueOf(expected).equals(String.valueOf(actual)) && mismatches.size() < 10) {
+                    mismatches.add(source + " " + Arrays.toString(bytes) + ": expected " + escape(expected) + ", got " + escape(actual));
+                }
+            }
+        }
+        assertTrue(mismatches.isEmpty(), () -> String.join("\n", mismatches));
+        // make sure corpus isn't just garbage
+        assertTrue(matched > CORPUS_SIZE / 50, "Only " + matched + " lines matched");
+    }
+
+    @Test
+    void lineInsideBuffer() {
+        // tcp listener passes lines as position and limit of connection buffer
+        byte[] bytes = "garbage&0&x&y\ndev&10&tag&message\nrest&0&a&b".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        buffer.position(14).limit(32);
+        DeviceLoggerMessage message = parser.parse(DeviceLogSource.TCP, buffer, "10.0.0.1");
+        assertNotNull(message);
+        assertEquals("dev", message.getDevice().getName());
+        assertEquals("message", message.getMessage());
+        assertEquals(14, buffer.position());
+        assertEquals(32, buffer.limit());
+    }
+
+    // What parser with patterns returned, fields joined to compare
+    private static String expected(DeviceLogSource source, String line, String ip) {
+        if (line.isBlank()) {
+            return null;
+        }
+        Matcher matcher = (source == DeviceLogSource.MULTICAST ? MULTICAST_PATTERN : TCP_PATTERN).matcher(line);
+        if (!matcher.find()) {
+            return null;
+        }
+        Level level;
+        try {
+            level = Level.intToLevel(Integer.parseInt(matcher.group("level")));
+        } catch (IllegalArgumentException exception) {
+            return null;
+        }
+        return String.join("|",
+                source == DeviceLogSource.MULTICAST ? matcher.group("ip") : ip,
+                matcher.group("name"),
+                level.toString(),
+                matcher.group("tag"),
+                matcher.group("message")
+        );
+    }
+
+    private String actual(DeviceLogSource source, byte[] bytes, String ip) {
+        DeviceLoggerMessage message = parser.parse(source, ByteBuffer.wrap(bytes), ip);
+        if (message == null) {
+            return null;
+        }
+        return String.join("|",
+                message.getDevice().getIp(),
+                message.getDevice().getName(),
+                message.getLevel().toString(),
+                message.getTag(),
+                message.getMessage()
+        );
+    }
+
+    // Either fields with noise, or just random atoms
+    private static byte[] randomLine(Random random) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        boolean raw = random.nextInt(5) == 0;
+        if (random.nextBoolean()) {
+            int fields = 3 + random.nextInt(4);
+            for (int f = 0; f < fields; f++) {
+                if (f > 0) {
+                    out.write('&');
+                }
+                if (f == fields - 3 && random.nextInt(4) > 0) {
+                    out.writeBytes(LEVELS[random.nextInt(LEVELS.length)].getBytes(StandardCharsets.UTF_8));
+                }
+                writeAtoms(random, out, random.nextInt(4), raw);
+            }
+        } else {
+            writeAtoms(random, out, random.nextInt(14), raw);
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeAtoms(Random random, ByteArrayOutputStream out, int count, boolean raw) {
+        for (int i = 0; i < count; i++) {
+            if (raw && random.nextInt(6) == 0) {
+                out.writeBytes(RAW_ATOMS[random.nextInt(RAW_ATOMS.length)]);
+            } else {
+                out.writeBytes(ATOMS[random.nextInt(ATOMS.length)].getBytes(StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    private static String escape(String value) {
+        return value == null ? "null" : value.replace("\n", "\\n").replace("\r", "\\r");
+    }
+}
@@ -27,6 +27,8 @@ public class DeviceInfo {
     private String stVersion;
     @Schema(description = "Firmware version")
     private String version;
+    @Schema(description = "Gateway network interface, on which device was found")
+    private String networkInterface;
 
     public DeviceInfo(String ip, String name) {
         this.ip = ip;
@@ -0,0 +1,18 @@
+package ru.pobopo.smartthing.model.stomp;
+
+import lombok.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@Data
+@ToString
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+public class DeviceBatchRequest {
+    @Builder.Default
+    private List<DeviceRequest> requests = new ArrayList<>();
+    // Per request deadline in milliseconds, gateway default is used if null
+    private Long timeout;
+}
@@ -0,0 +1,21 @@
+package ru.pobopo.smartthing.model.stomp;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+
+@Getter
+@Setter
+@ToString(callSuper = true)
+public class DeviceBatchRequestMessage extends BaseMessage {
+    private DeviceBatchRequest request;
+
+    public DeviceBatchRequestMessage() {
+        super(MessageType.DEVICE_BATCH_REQUEST);
+    }
+
+    public DeviceBatchRequestMessage(DeviceBatchRequest request) {
+        super(MessageType.DEVICE_BATCH_REQUEST);
+        this.request = request;
+    }
+}
@@ -2,6 +2,7 @@ package ru.pobopo.smartthing.model.stomp;
 
 public enum MessageType {
     DEVICE_REQUEST,
+    DEVICE_BATCH_REQUEST,
     GATEWAY_REQUEST,
     GATEWAY_COMMAND;
 }